@@ -0,0 +1,79 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserProvider;
+
+/**
+ * Registration of new users into a {@link UserProvider} holding
+ * <code>size</code> users. The registry grows by the users registered, so
+ * persistent providers use a database of their own which grows from run to
+ * run; delete it below {@link Registry#DIRECTORY} to start over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend =
+		"-Dlog4j.configuration=log4j-benchmarks.properties")
+public class RegisterBenchmark {
+
+	@Param({"memory", "ormlite", "lucene"})
+	public String provider;
+
+	@Param({"10000", "1000000", "10000000"})
+	public int size;
+
+	private UserProvider userProvider;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private String prefix;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		userProvider = Registry.create(provider, size + "-register");
+		Registry.fill(userProvider, size);
+
+		// saids of earlier runs are taken
+		prefix = "bench-" + System.currentTimeMillis() + "-";
+	}
+
+	@Benchmark
+	public User register() {
+		int i = next.getAndIncrement();
+		User user = Registry.user(i);
+		user.setSaid(prefix + i);
+		return userProvider.register(user);
+	}
+
+}
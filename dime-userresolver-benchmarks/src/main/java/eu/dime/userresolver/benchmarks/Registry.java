@@ -0,0 +1,124 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.dime.userresolver.service.user.LuceneUserProvider;
+import eu.dime.userresolver.service.user.MemoryUserProvider;
+import eu.dime.userresolver.service.user.OrmLiteUserProvider;
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserProvider;
+
+/**
+ * Synthetic registry of a given size. User i has the said "said-i", one of
+ * {@link #NAMES} names and surnames, and the unique nickname "nick-i"; the
+ * same i always yields the same user.
+ *
+ * Databases are kept below {@link #DIRECTORY} and only filled once per
+ * size, as filling 10M users takes a while.
+ */
+final class Registry {
+
+	/** distinct names and surnames */
+	static final int NAMES = 10000;
+
+	static final File DIRECTORY = new File(System.getProperty(
+			"benchmark.dir", new File(System.getProperty("java.io.tmpdir"),
+					"userresolver-benchmarks").getPath()));
+
+	private static final int CHUNK = 10000;
+
+	private Registry() {}
+
+	/**
+	 * Creates a provider of the given kind. Add new providers here to
+	 * have them measured by all benchmarks.
+	 *
+	 * @param kind "memory", "ormlite" or "lucene"
+	 * @param name name of the database, for persistent providers
+	 */
+	static UserProvider create(String kind, String name) {
+		if("memory".equals(kind))
+			return new MemoryUserProvider();
+
+		if("ormlite".equals(kind)) {
+			System.setProperty("app.folder",
+					new File(DIRECTORY, kind + "-" + name).getAbsolutePath());
+			return new OrmLiteUserProvider();
+		}
+
+		if("lucene".equals(kind)) {
+			System.setProperty("app.folder",
+					new File(DIRECTORY, kind + "-" + name).getAbsolutePath());
+			return new LuceneUserProvider();
+		}
+
+		throw new IllegalArgumentException("Unknown provider: " + kind);
+	}
+
+	/**
+	 * Registers users 0 to size - 1 unless the last one is there already.
+	 */
+	static void fill(UserProvider provider, int size) {
+		if(size == 0 || !provider.getBySaids(
+				Collections.singletonList(said(size - 1))).isEmpty())
+			return;
+
+		long start = System.currentTimeMillis();
+		for(int from = 0; from < size; from += CHUNK) {
+			List<User> users = new ArrayList<User>(CHUNK);
+			for(int i = from; i < Math.min(size, from + CHUNK); i++)
+				users.add(user(i));
+			provider.registerAll(users);
+		}
+		// the index is otherwise committed in the background only
+		if(provider instanceof LuceneUserProvider)
+			((LuceneUserProvider) provider).commit();
+		System.out.println("Registered " + size + " users in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	static User user(int i) {
+		User user = new User();
+		user.setSaid(said(i));
+		user.setName(name(i));
+		user.setSurname(surname(i));
+		user.setNickname(nickname(i));
+		user.setKey("key-" + i);
+		return user;
+	}
+
+	static String said(int i) {
+		return "said-" + i;
+	}
+
+	static String name(int i) {
+		return "name" + (i % NAMES);
+	}
+
+	/** spreads the users of one name over all surnames */
+	static String surname(int i) {
+		return "surname" + ((i / NAMES + i) % NAMES);
+	}
+
+	static String nickname(int i) {
+		return "nick-" + i;
+	}
+
+}
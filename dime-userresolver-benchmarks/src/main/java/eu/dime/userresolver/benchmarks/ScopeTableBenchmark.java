@@ -0,0 +1,93 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cxf.rs.security.oauth2.common.OAuthPermission;
+import org.apache.cxf.rs.security.oauth2.utils.OAuthUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.dime.userresolver.service.oauth.MemoryOAuthProvider;
+import eu.dime.userresolver.service.oauth.ScopeTable;
+
+/**
+ * Deciding which scopes of a token allow a request: the permission list
+ * walk of the CXF OAuth filter against the precompiled {@link ScopeTable}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend =
+		"-Dlog4j.configuration=log4j-benchmarks.properties")
+public class ScopeTableBenchmark {
+
+	@Param({"GET /search", "POST /register", "DELETE /users/x"})
+	public String request;
+
+	private ScopeTable table;
+	private List<OAuthPermission> granted;
+	private String verb;
+	private String path;
+
+	@Setup
+	public void setUp() {
+		MemoryOAuthProvider provider = new MemoryOAuthProvider();
+		table = provider.getScopeTable();
+		granted = provider.convertScopeToPermissions(
+				null, Arrays.asList("search", "register", "update"));
+
+		verb = request.substring(0, request.indexOf(' '));
+		path = request.substring(request.indexOf(' ') + 1);
+	}
+
+	@Benchmark
+	public List<OAuthPermission> permissionList() {
+		List<OAuthPermission> allowed = new ArrayList<OAuthPermission>();
+		for(OAuthPermission permission : granted) {
+			boolean uriMatches = false;
+			for(String uri : permission.getUris()) {
+				if(OAuthUtils.checkRequestURI(path, uri)) {
+					uriMatches = true;
+					break;
+				}
+			}
+			if(uriMatches && permission.getHttpVerbs().contains(verb))
+				allowed.add(permission);
+		}
+		return allowed;
+	}
+
+	@Benchmark
+	public int scopeTable() {
+		return table.allowed(table.permissionMask(granted), verb, path);
+	}
+
+}
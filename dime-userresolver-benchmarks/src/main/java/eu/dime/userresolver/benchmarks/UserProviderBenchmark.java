@@ -0,0 +1,144 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserPage;
+import eu.dime.userresolver.service.user.UserProvider;
+
+/**
+ * Lookups and searches of a {@link UserProvider}. A share of
+ * <code>hitRatio</code> of the queries names existing users, the others
+ * find nothing. Searches ask for the first page, as the service does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend =
+		"-Dlog4j.configuration=log4j-benchmarks.properties")
+public class UserProviderBenchmark {
+
+	/** page size of the service */
+	private static final int LIMIT = 100;
+
+	/** queries are taken round robin, a power of two */
+	private static final int QUERIES = 4096;
+
+	@Param({"memory", "ormlite", "lucene"})
+	public String provider;
+
+	@Param({"10000", "1000000", "10000000"})
+	public int size;
+
+	@Param({"1.0", "0.5", "0.0"})
+	public double hitRatio;
+
+	private UserProvider userProvider;
+
+	private final String[] saids = new String[QUERIES];
+	private final String[] names = new String[QUERIES];
+	private final String[] surnames = new String[QUERIES];
+	private final String[] nicknames = new String[QUERIES];
+	private final String[] misspelled = new String[QUERIES];
+
+	/**
+	 * Position of a thread in the queries.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		int next() {
+			return next++ & (QUERIES - 1);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		userProvider = Registry.create(provider, String.valueOf(size));
+		Registry.fill(userProvider, size);
+
+		Random random = new Random(42);
+		for(int q = 0; q < QUERIES; q++) {
+			int i = random.nextInt(size);
+			if(random.nextDouble() < hitRatio) {
+				saids[q] = Registry.said(i);
+				names[q] = Registry.name(i);
+				surnames[q] = Registry.surname(i);
+				nicknames[q] = Registry.nickname(i);
+			} else {
+				saids[q] = "missing-" + i;
+				names[q] = "missing" + i;
+				surnames[q] = "missing" + i;
+				nicknames[q] = "missing-" + i;
+			}
+			// one letter dropped
+			misspelled[q] = surnames[q].charAt(0) + surnames[q].substring(2);
+		}
+	}
+
+	/** unknown saids are reported with an exception */
+	@Benchmark
+	public User getBySaid(Cursor cursor) {
+		try {
+			return userProvider.getBySaid(saids[cursor.next()]);
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Benchmark
+	public UserPage search(Cursor cursor) {
+		return userProvider.search(
+				names[cursor.next()], null, null, null, LIMIT);
+	}
+
+	@Benchmark
+	public UserPage searchAll(Cursor cursor) {
+		return userProvider.searchAll(surnames[cursor.next()], null, LIMIT);
+	}
+
+	/** the nickname "nick-12" also finds "nick-120" and so on */
+	@Benchmark
+	public UserPage searchAllLike(Cursor cursor) {
+		return userProvider.searchAllLike(
+				nicknames[cursor.next()], null, LIMIT);
+	}
+
+	@Benchmark
+	public UserPage searchFuzzy(Cursor cursor) {
+		return userProvider.searchFuzzy(
+				misspelled[cursor.next()], 1, null, LIMIT);
+	}
+
+}
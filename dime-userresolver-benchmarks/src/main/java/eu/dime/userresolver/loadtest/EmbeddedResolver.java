@@ -0,0 +1,96 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.cxf.transport.servlet.CXFServlet;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * The user resolver web application in an embedded Jetty on localhost,
+ * configured by its own WEB-INF/cxf-servlet.xml and with the database and
+ * token files in a temporary folder.
+ */
+class EmbeddedResolver {
+
+	private final File appFolder;
+	private final Server server;
+	private final ServletContextHandler context;
+	private final SelectChannelConnector connector;
+
+	/**
+	 * @param webapp the src/main/webapp folder of the user resolver
+	 * @param port 0 for any free port
+	 */
+	EmbeddedResolver(File webapp, int port) throws IOException {
+		File config = new File(webapp, "WEB-INF/cxf-servlet.xml");
+		if(!config.isFile())
+			throw new IllegalArgumentException("No configuration at " + config);
+
+		appFolder = File.createTempFile("userresolver-loadtest", "");
+		FileUtils.forceDelete(appFolder);
+		FileUtils.forceMkdir(appFolder);
+		System.setProperty("app.folder", appFolder.getAbsolutePath());
+
+		server = new Server();
+		connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(port);
+		server.addConnector(connector);
+
+		// the configuration is loaded as root context, CXFServlet picks the
+		// bus up from there
+		context = new ServletContextHandler();
+		context.setContextPath("/");
+		context.setResourceBase(appFolder.getAbsolutePath());
+		context.setInitParameter("contextConfigLocation",
+				config.toURI() + " classpath:/loadtest-overrides.xml");
+		context.addEventListener(new ContextLoaderListener());
+		context.addServlet(new ServletHolder(new CXFServlet()), "/api/*");
+		server.setHandler(context);
+	}
+
+	void start() throws Exception {
+		server.start();
+	}
+
+	void stop() throws Exception {
+		try {
+			server.stop();
+		} finally {
+			FileUtils.deleteQuietly(appFolder);
+		}
+	}
+
+	String getBaseUrl() {
+		return "http://127.0.0.1:" + connector.getLocalPort() + "/api";
+	}
+
+	<T> T getBean(String name, Class<T> type) {
+		WebApplicationContext applicationContext = WebApplicationContextUtils
+				.getRequiredWebApplicationContext(context.getServletContext());
+		return applicationContext.getBean(name, type);
+	}
+
+}
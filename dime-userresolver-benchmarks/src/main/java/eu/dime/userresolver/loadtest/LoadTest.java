@@ -0,0 +1,368 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.cxf.rs.security.oauth2.common.Client;
+import org.apache.cxf.rs.security.oauth2.grants.code.AuthorizationCodeDataProvider;
+import org.apache.cxf.rs.security.oauth2.grants.code.AuthorizationCodeRegistration;
+import org.apache.cxf.rs.security.oauth2.grants.code.ServerAuthorizationCodeGrant;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import eu.dime.userresolver.client.utils.HttpClientConfig;
+import eu.dime.userresolver.client.utils.HttpUtils;
+import eu.dime.userresolver.service.metrics.LatencyHistogram;
+
+/**
+ * Drives the whole service stack - Jetty, the CXF interceptors, basic
+ * authentication, Jackson and the SQLite provider - with a mix of
+ * requests from many threads, all on localhost:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar eu.dime.userresolver.loadtest.LoadTest \
+ *     threads=16 duration=30 mix=search:80,register:15,oauth:5
+ * </pre>
+ *
+ * Options, as name=value: threads (16), warmup and duration in seconds
+ * (5, 30), users registered up front (1000), mix of operation weights,
+ * webapp folder of the user resolver (../dime-userresolver/src/main/webapp).
+ *
+ * <ul>
+ * <li>search: /users/search by name, as a random registered user</li>
+ * <li>register: /users/register of a new user; the service requires an
+ * Authorization header but does not check it for registrations, so the
+ * credentials of a random registered user are sent unverified</li>
+ * <li>oauth: /oauth/token for an authorization code created in-process,
+ * as the proof grant service of the configuration does not exist yet</li>
+ * </ul>
+ */
+public class LoadTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final String CLIENT_ID = "loadtest";
+	private static final int NAMES = 100;
+	private static final int SEED_CHUNK = 500;
+
+	private final EmbeddedResolver resolver;
+	private final DefaultHttpClient httpClient;
+	private final String baseUrl;
+
+	private final List<String> authorizations = new ArrayList<String>();
+	private final AtomicLong registered = new AtomicLong();
+
+	private final Map<String, Integer> mix;
+	private final int totalWeight;
+
+	/**
+	 * Latency and failures of one operation during one phase.
+	 */
+	private static class Stats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	LoadTest(EmbeddedResolver resolver, int threads, Map<String, Integer> mix) {
+		this.resolver = resolver;
+		this.baseUrl = resolver.getBaseUrl();
+		this.mix = mix;
+
+		int total = 0;
+		for(int weight : mix.values())
+			total += weight;
+		if(total <= 0)
+			throw new IllegalArgumentException("Empty mix: " + mix);
+		totalWeight = total;
+
+		HttpClientConfig config = new HttpClientConfig();
+		config.setMaxConnections(threads);
+		config.setMaxConnectionsPerRoute(threads);
+		httpClient = HttpUtils.createPooledHttpClient(config);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(System.getProperty("log4j.configuration") == null)
+			System.setProperty(
+					"log4j.configuration", "log4j-benchmarks.properties");
+
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("threads", "16");
+		options.put("warmup", "5");
+		options.put("duration", "30");
+		options.put("users", "1000");
+		options.put("mix", "search:80,register:15,oauth:5");
+		options.put("webapp", "../dime-userresolver/src/main/webapp");
+		for(String arg : args) {
+			int separator = arg.indexOf('=');
+			if(separator < 0 || !options.containsKey(arg.substring(0, separator)))
+				throw new IllegalArgumentException("Unknown option: " + arg
+						+ ", expected one of " + options.keySet());
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		System.out.println("Options: " + options);
+
+		int threads = Integer.parseInt(options.get("threads"));
+		EmbeddedResolver resolver = new EmbeddedResolver(
+				new File(options.get("webapp")), 0);
+		resolver.start();
+		LoadTest test = new LoadTest(resolver, threads, parseMix(options.get("mix")));
+		try {
+			test.seed(Integer.parseInt(options.get("users")));
+
+			System.out.println("Warming up for " + options.get("warmup") + " s");
+			test.run(threads, Integer.parseInt(options.get("warmup")));
+
+			System.out.println("Measuring for " + options.get("duration") + " s");
+			long duration = Integer.parseInt(options.get("duration"));
+			report(test.run(threads, duration), duration);
+		} finally {
+			test.httpClient.getConnectionManager().shutdown();
+			resolver.stop();
+		}
+	}
+
+	private static Map<String, Integer> parseMix(String value) {
+		Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+		for(String part : value.split(",")) {
+			String[] entry = part.split(":");
+			if(entry.length != 2 || !(entry[0].equals("search")
+					|| entry[0].equals("register") || entry[0].equals("oauth")))
+				throw new IllegalArgumentException("Invalid mix: " + part);
+			mix.put(entry[0], Integer.parseInt(entry[1]));
+		}
+		return mix;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Registers the users the requests authenticate as, with the bulk
+	 * registration of the unauthenticated service.
+	 */
+	void seed(int users) throws IOException {
+		long start = System.currentTimeMillis();
+		for(int from = 0; from < users; from += SEED_CHUNK) {
+			ArrayNode body = MAPPER.createArrayNode();
+			for(int i = from; i < Math.min(users, from + SEED_CHUNK); i++) {
+				ObjectNode user = body.addObject();
+				user.put("said", "loadtest-" + i);
+				user.put("name", "name" + (i % NAMES));
+				user.put("surname", "surname" + i);
+				user.put("nickname", "nick-" + i);
+			}
+
+			HttpPost post = new HttpPost(baseUrl + "/noauth/users/bulk/register");
+			post.setEntity(new StringEntity(MAPPER.writeValueAsString(body),
+					ContentType.APPLICATION_JSON));
+			JsonNode response = MAPPER.readTree(execute(post, 200));
+			for(JsonNode entry : response.get("result")) {
+				if(entry.path("key").isMissingNode() || entry.get("key").isNull())
+					throw new IOException("Unable to register "
+							+ entry.get("said") + ": " + entry.get("error"));
+				authorizations.add(basic(entry.get("said").getTextValue(),
+						entry.get("key").getTextValue()));
+			}
+		}
+		System.out.println("Registered " + users + " users in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Runs the mix from the given number of threads.
+	 *
+	 * @return statistics by operation
+	 */
+	Map<String, Stats> run(int threads, long seconds)
+			throws InterruptedException {
+		final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+		for(String operation : mix.keySet())
+			stats.put(operation, new Stats());
+
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while(System.nanoTime() < end) {
+							String operation = pick();
+							Stats operationStats = stats.get(operation);
+							try {
+								HttpUriRequest request = prepare(operation);
+								long start = System.nanoTime();
+								try {
+									execute(request, 200);
+								} finally {
+									operationStats.latency.record(
+											System.nanoTime() - start);
+								}
+							} catch(IOException e) {
+								operationStats.errors.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "loadtest-" + t);
+			thread.start();
+		}
+		done.await();
+		return stats;
+	}
+
+	private static void report(Map<String, Stats> stats, long seconds) {
+		System.out.println(String.format("%-10s %10s %8s %10s %10s %10s %10s",
+				"operation", "req/s", "errors", "p50 ms", "p99 ms",
+				"p999 ms", "max ms"));
+
+		long total = 0;
+		for(Map.Entry<String, Stats> entry : stats.entrySet()) {
+			LatencyHistogram latency = entry.getValue().latency;
+			total += latency.getCount();
+			System.out.println(String.format(
+					"%-10s %10.1f %8d %10.2f %10.2f %10.2f %10.2f",
+					entry.getKey(),
+					(double) latency.getCount() / seconds,
+					entry.getValue().errors.get(),
+					latency.getValueAtPercentile(50) / 1e6,
+					latency.getValueAtPercentile(99) / 1e6,
+					latency.getValueAtPercentile(99.9) / 1e6,
+					latency.getMax() / 1e6));
+		}
+		System.out.println(String.format("%-10s %10.1f", "total",
+				(double) total / seconds));
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private String pick() {
+		int value = ThreadLocalRandom.current().nextInt(totalWeight);
+		for(Map.Entry<String, Integer> entry : mix.entrySet()) {
+			value -= entry.getValue();
+			if(value < 0)
+				return entry.getKey();
+		}
+		throw new IllegalStateException();
+	}
+
+	private HttpUriRequest prepare(String operation) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String authorization =
+				authorizations.get(random.nextInt(authorizations.size()));
+
+		if("search".equals(operation)) {
+			HttpGet get = new HttpGet(baseUrl + "/users/search?name=name"
+					+ random.nextInt(NAMES) + "&limit=20");
+			get.setHeader("Authorization", authorization);
+			return get;
+		}
+
+		if("register".equals(operation)) {
+			long i = registered.incrementAndGet();
+			HttpPost post = new HttpPost(baseUrl + "/users/register");
+			post.setHeader("Authorization", authorization);
+			post.setEntity(form(
+					"said", "loadtest-new-" + i,
+					"name", "name" + (i % NAMES),
+					"surname", "new" + i,
+					"nickname", "new-nick-" + i));
+			return post;
+		}
+
+		HttpPost post = new HttpPost(baseUrl + "/oauth/token");
+		post.setEntity(form(
+				"grant_type", "authorization_code",
+				"code", createCode(),
+				"client_id", CLIENT_ID,
+				"client_secret", LoadTestOAuthProvider.CLIENT_SECRET));
+		return post;
+	}
+
+	/**
+	 * Creates the code an authorization service would have handed to the
+	 * client, directly with the OAuth data provider of the service.
+	 */
+	private String createCode() {
+		AuthorizationCodeDataProvider provider = resolver.getBean(
+				"oauthProvider", AuthorizationCodeDataProvider.class);
+		Client client = provider.getClient(CLIENT_ID);
+
+		AuthorizationCodeRegistration registration =
+				new AuthorizationCodeRegistration();
+		registration.setClient(client);
+		ServerAuthorizationCodeGrant grant =
+				provider.createCodeGrant(registration);
+		grant.setApprovedScopes(Collections.singletonList("search"));
+		return grant.getCode();
+	}
+
+	/**
+	 * @return the response body
+	 * @throws IOException also if the response has another status
+	 */
+	private String execute(HttpUriRequest request, int expectedStatus)
+			throws IOException {
+		HttpResponse response = httpClient.execute(request);
+		String body = response.getEntity() == null ?
+				"" : EntityUtils.toString(response.getEntity(), "UTF-8");
+		int status = response.getStatusLine().getStatusCode();
+		if(status != expectedStatus)
+			throw new IOException(request.getMethod() + " " + request.getURI()
+					+ " failed with status " + status + ": " + body);
+		return body;
+	}
+
+	private static UrlEncodedFormEntity form(String... nameValues)
+			throws IOException {
+		List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+		for(int i = 0; i < nameValues.length; i += 2)
+			pairs.add(new BasicNameValuePair(nameValues[i], nameValues[i + 1]));
+		return new UrlEncodedFormEntity(pairs, "UTF-8");
+	}
+
+	private static String basic(String user, String password)
+			throws IOException {
+		return "Basic " + Base64.encodeBase64String(
+				(user + ":" + password).getBytes("UTF-8"));
+	}
+
+}
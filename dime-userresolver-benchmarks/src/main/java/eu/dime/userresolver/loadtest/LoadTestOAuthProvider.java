@@ -0,0 +1,38 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.loadtest;
+
+import org.apache.cxf.rs.security.oauth2.common.Client;
+import org.apache.cxf.rs.security.oauth2.provider.OAuthServiceException;
+
+import eu.dime.userresolver.service.oauth.MappedTokenOAuthProvider;
+
+/**
+ * {@link MappedTokenOAuthProvider} whose clients authenticate with
+ * {@link #CLIENT_SECRET}. The clients of the service have no secret,
+ * which the token endpoint of CXF refuses, so the load test could not
+ * exchange a single code otherwise.
+ */
+class LoadTestOAuthProvider extends MappedTokenOAuthProvider {
+
+	static final String CLIENT_SECRET = "loadtest";
+
+	@Override
+	public Client getClient(String clientId) throws OAuthServiceException {
+		Client client = super.getClient(clientId);
+		return new Client(client.getClientId(), CLIENT_SECRET, true);
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.dime.userresolver.client.utils.HttpClientConfig;
+import eu.dime.userresolver.client.utils.HttpUtils;
+
+/**
+ * Non-blocking client of the user resolver service. Requests are sent by a
+ * few I/O threads; every method returns at once with a future of the JSON
+ * response and optionally calls back on completion. At most
+ * {@link HttpClientConfig#getMaxInFlight()} requests are in progress,
+ * further ones fail with a {@link RejectedExecutionException}. A response
+ * with another status than 200 fails the future with an
+ * {@link IOException} carrying the status and body.
+ *
+ * Instances are thread-safe; call {@link #close()} when no longer needed.
+ */
+public class AsyncResolverClient {
+
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AsyncResolverClient.class);
+
+	private final DefaultHttpAsyncClient httpClient;
+	private final Thread evictor;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+
+	private String serviceEnpoint;
+
+	public AsyncResolverClient(String serviceEndpoint,
+			HttpClientConfig config) {
+		this.serviceEnpoint = serviceEndpoint;
+
+		try {
+			httpClient = HttpUtils.createPooledHttpAsyncClient(config);
+		} catch(IOReactorException e) {
+			throw new RuntimeException("Unable to create http client", e);
+		}
+		httpClient.start();
+
+		evictor = HttpUtils.startIdleConnectionEvictor(
+				(PoolingClientAsyncConnectionManager)
+						httpClient.getConnectionManager(), config);
+		maxInFlight = config.getMaxInFlight();
+		inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Stops the I/O threads; requests still in progress fail.
+	 */
+	public void close() {
+		evictor.interrupt();
+		try {
+			httpClient.shutdown();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of requests in progress
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	public Future<String> searchAll(String token, String name) {
+		return searchAll(token, name, null);
+	}
+
+	public Future<String> searchAll(String token, String name,
+			FutureCallback<String> callback) {
+		return execute(ResolverRequests.searchAll(
+				serviceEnpoint, token, name), callback);
+	}
+
+	public Future<String> search(String token, String name, String surname,
+			String nickname) {
+		return search(token, name, surname, nickname, null);
+	}
+
+	public Future<String> search(String token, String name, String surname,
+			String nickname, FutureCallback<String> callback) {
+		return execute(ResolverRequests.search(
+				serviceEnpoint, token, name, surname, nickname), callback);
+	}
+
+	public Future<String> register(String token, String name,
+			String surname, String nickname, String said) {
+		return register(token, name, surname, nickname, said, null);
+	}
+
+	public Future<String> register(String token, String name,
+			String surname, String nickname, String said,
+			FutureCallback<String> callback) {
+		return execute(ResolverRequests.register(
+				serviceEnpoint, token, name, surname, nickname, said),
+				callback);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private Future<String> execute(HttpUriRequest request,
+			FutureCallback<String> callback) {
+		final ResponseFuture future = new ResponseFuture(callback);
+		if(!inFlight.tryAcquire()) {
+			future.failed(new RejectedExecutionException(
+					"Too many requests in flight"));
+			return future;
+		}
+
+		FutureCallback<HttpResponse> done = new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				inFlight.release();
+
+				HttpEntity entity = response.getEntity();
+				int status = response.getStatusLine().getStatusCode();
+				try {
+					String body = entity == null ?
+							null : EntityUtils.toString(entity, "UTF-8");
+					if(status != HttpStatus.SC_OK)
+						future.failed(new IOException("Request failed with "
+								+ "status " + status + ": " + body));
+					else
+						future.completed(body);
+				} catch(IOException e) {
+					future.failed(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				inFlight.release();
+				LOG.debug("Request failed", e);
+				future.failed(e);
+			}
+
+			@Override
+			public void cancelled() {
+				inFlight.release();
+				future.cancel(true);
+			}
+		};
+
+		try {
+			future.request = httpClient.execute(request, done);
+			// cancelled before the request was known, see ResponseFuture
+			if(future.isCancelled())
+				future.request.cancel(true);
+		} catch(RuntimeException e) {
+			// e.g. the client was closed, the callback is never called
+			inFlight.release();
+			future.failed(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Future of the response body, cancelling the underlying request when
+	 * cancelled itself. It is marked cancelled before the request is read,
+	 * and the request is checked for cancellation once it is set, so one of
+	 * the two sides always cancels the request.
+	 */
+	private static class ResponseFuture extends BasicFuture<String> {
+
+		volatile Future<HttpResponse> request;
+
+		ResponseFuture(FutureCallback<String> callback) {
+			super(callback);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<HttpResponse> request = this.request;
+			if(request != null)
+				request.cancel(mayInterruptIfRunning);
+			return cancelled;
+		}
+	}
+
+}
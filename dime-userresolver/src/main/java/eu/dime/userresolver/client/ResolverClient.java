@@ -15,31 +15,43 @@
 package eu.dime.userresolver.client;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import org.apache.commons.io.IOUtils;
+
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonParseException;
+
+import eu.dime.userresolver.client.entities.User;
+import eu.dime.userresolver.client.utils.HttpClientConfig;
 import eu.dime.userresolver.client.utils.HttpUtils;
 
+/**
+ * Client of the user resolver service. An instance created with a 
+ * {@link HttpClientConfig} is backed by a connection pool and can be shared 
+ * by any number of threads; call {@link #close()} when it is no longer 
+ * needed.
+ */
 public class ResolverClient {
 		
 	public static final Logger LOG = 
 			LoggerFactory.getLogger(ResolverClient.class);
 	
 	private HttpClient httpClient;
+	private Thread evictor;
+	
+	private volatile ValidationCache validationCache = new ValidationCache(100);
 		
 	private String authEndpoint;
 	private String serviceEnpoint;
@@ -51,90 +63,237 @@ public class ResolverClient {
 		httpClient = HttpUtils.createHttpClient();
 	}
 	
+	public ResolverClient(String serviceEndpoint, String authEndpoint,
+			HttpClientConfig config) {
+		this.serviceEnpoint = serviceEndpoint;
+		this.authEndpoint = authEndpoint;
+		
+		httpClient = HttpUtils.createPooledHttpClient(config);
+		evictor = HttpUtils.startIdleConnectionEvictor(
+				httpClient.getConnectionManager(), config);
+	}
+	
+	/**
+	 * Number of search results kept for revalidation with their ETag; 0 
+	 * disables revalidation.
+	 */
+	public void setValidationCacheSize(int size) {
+		validationCache = new ValidationCache(size);
+	}
+	
+	/**
+	 * @return searches answered from the validation cache
+	 */
+	public long getValidationHits() {
+		return validationCache.getHits();
+	}
+	
+	/**
+	 * @return revalidated searches whose result had changed
+	 */
+	public long getValidationMisses() {
+		return validationCache.getMisses();
+	}
+	
+	/**
+	 * Closes all connections.
+	 */
+	public void close() {
+		if(evictor != null)
+			evictor.interrupt();
+		httpClient.getConnectionManager().shutdown();
+	}
+	
 	////////////////////////////////////////////////////////////////////////////
 	
-	public void searchAll(String token, String name) {
-		HttpGet httpGet;
-		try {
-			URIBuilder builder = new URIBuilder(serviceEnpoint + "/search");
-			builder.setParameter("like", name);
-			httpGet = new HttpGet(builder.build());	
-		} catch (URISyntaxException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * Users whose name, surname or nickname contains the string. All pages
+	 * of the result are fetched, one request each.
+	 */
+	public List<User> searchAll(String token, String name) 
+			throws IOException {
+		List<User> users = fetch(
+				ResolverRequests.searchAll(serviceEnpoint, token, name));
+		LOG.debug("Search returned {} users", users.size());
+		return users;
+	}
+	
+	/**
+	 * Like {@link #searchAll(String, String)}, but decodes the users while 
+	 * they are iterated; the stream has to be closed. It only covers the 
+	 * first page, {@link UserStream#getNext()} tells if there are more.
+	 */
+	public UserStream searchAllStream(String token, String name) 
+			throws IOException {
+		return stream(ResolverRequests.searchAll(serviceEnpoint, token, name));
+	}
+	
+	/**
+	 * Users with a name, surname or nickname close to the query in 
+	 * spelling or sound. All pages of the result are fetched, one request 
+	 * each.
+	 * 
+	 * @param distance edits allowed, 0 to 2, null for the default of the 
+	 * 		service depending on the query length
+	 */
+	public List<User> searchFuzzy(String token, String query, 
+			Integer distance) throws IOException {
+		List<User> users = fetch(ResolverRequests.searchFuzzy(
+				serviceEnpoint, token, query, distance));
+		LOG.debug("Fuzzy search returned {} users", users.size());
+		return users;
+	}
+	
+	/**
+	 * Users matching all of the given fields, null fields match any. All 
+	 * pages of the result are fetched, one request each.
+	 */
+	public List<User> search(String token, String name, String surname, 
+			String nickname) throws IOException {
+		List<User> users = fetch(ResolverRequests.search(
+				serviceEnpoint, token, name, surname, nickname));
+		LOG.debug("Search returned {} users", users.size());
+		return users;
+	}
+	
+	/**
+	 * Like {@link #search(String, String, String, String)}, but decodes the 
+	 * users while they are iterated; the stream has to be closed. It only 
+	 * covers the first page, {@link UserStream#getNext()} tells if there 
+	 * are more.
+	 */
+	public UserStream searchStream(String token, String name, String surname, 
+			String nickname) throws IOException {
+		return stream(ResolverRequests.search(
+				serviceEnpoint, token, name, surname, nickname));
+	}
+
+	/**
+	 * Resolves all saids with a single request.
+	 * 
+	 * @return the users found, in the order of the saids
+	 */
+	public List<User> lookup(String token, Collection<String> saids) 
+			throws IOException {
+		List<User> users = toList(stream(
+				ResolverRequests.lookup(serviceEnpoint, token, saids)));
+		LOG.debug("Lookup of {} saids returned {} users", 
+				saids.size(), users.size());
+		return users;
+	}
+
+	public String register(String token, String name, String surname,
+			String nickname, String said) throws IOException{
+		HttpPost httpPost = ResolverRequests.register(
+				serviceEnpoint, token, name, surname, nickname, said);
 		
-		httpGet.setHeader("Authorization", "Bearer " + token);
-		try {
-			HttpResponse response = httpClient.execute(httpGet);
-			HttpEntity entity = response.getEntity();
-			if(entity != null) {
-				String jsonResponse = IOUtils.toString(entity.getContent());
-				LOG.debug("Search response: {}", jsonResponse);
-			}
-		} catch(IOException e) {
-			LOG.debug("Unable to search", e);	
+		String jsonResponse = execute(httpPost);
+		if(jsonResponse != null) {
+			LOG.debug("Register response: {}", jsonResponse);
+			return jsonResponse;
 		}
+		throw new IOException("Unable to register");
+		
+	}
+	
+	////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Runs a search and follows its "next" cursor until the last page.
+	 */
+	private List<User> fetch(HttpGet request) throws IOException {
+		List<User> users = new ArrayList<User>();
+		String next = fetch(request, users);
+		while(next != null)
+			next = fetch(ResolverRequests.nextPage(request, next), users);
+		return users;
 	}
 	
-	public void search(String token, String name, String surname, 
-			String nickname) {
+	/**
+	 * Runs a GET request, revalidating the last result of the same URI if 
+	 * there is one. An unchanged result costs a 304 response without body.
+	 * 
+	 * @param users receives the users of the page
+	 * @return cursor of the next page, null on the last one
+	 */
+	private String fetch(HttpGet request, List<User> users) 
+			throws IOException {
+		ValidationCache cache = validationCache;
+		String uri = request.getURI().toString();
 		
-		HttpGet httpGet;
-		try {
-			URIBuilder builder = new URIBuilder(serviceEnpoint + "/search");
-			if(name != null)
-				builder.setParameter("name", name);
-			if(surname != null)
-				builder.setParameter("surname", surname);
-			if(nickname != null)
-				builder.setParameter("nickname", nickname);
-			
-			httpGet = new HttpGet(builder.build());			
-		} catch(URISyntaxException e) {
-			throw new RuntimeException(e);
-		}
+		ValidationCache.Entry cached = cache.get(uri);
+		if(cached != null)
+			request.setHeader("If-None-Match", cached.etag);
 		
-		httpGet.setHeader("Authorization", "Bearer " + token);
-		try {
-			HttpResponse response = httpClient.execute(httpGet);
-			HttpEntity entity = response.getEntity();
-			if(entity != null) {
-				String jsonResponse = IOUtils.toString(entity.getContent());
-				LOG.debug("Search response: {}", jsonResponse);
+		HttpResponse response = httpClient.execute(request);
+		if(cached != null) {
+			boolean notModified = response.getStatusLine().getStatusCode() 
+					== HttpStatus.SC_NOT_MODIFIED;
+			cache.record(notModified);
+			if(notModified) {
+				EntityUtils.consume(response.getEntity());
+				users.addAll(cached.users);
+				return cached.next;
 			}
-		} catch(IOException e) {
-			LOG.debug("Unable to search", e);	
 		}
 		
+		UserStream stream = stream(response);
+		List<User> page = toList(stream);
+		users.addAll(page);
+		Header etag = response.getFirstHeader("ETag");
+		if(etag != null)
+			cache.put(uri, new ValidationCache.Entry(
+					etag.getValue(), page, stream.getNext()));
+		else
+			cache.remove(uri);
+		return stream.getNext();
 	}
-
-	public String register(String token, String name, String surname,
-			String nickname, String said) throws IOException{
-		HttpPost httpPost = new HttpPost(serviceEnpoint + "/register");
-		httpPost.setHeader("Authorization", "Bearer " + token);
+	
+	private UserStream stream(HttpUriRequest request) throws IOException {
+		return stream(httpClient.execute(request));
+	}
+	
+	private UserStream stream(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		if(entity == null)
+			throw new IOException("Empty response");
 		
-		List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
-		nameValuePairs.add(new BasicNameValuePair("name", name));
-		nameValuePairs.add(new BasicNameValuePair("surname", surname));
-		nameValuePairs.add(new BasicNameValuePair("nickname", nickname));
-		nameValuePairs.add(new BasicNameValuePair("said", said));
+		int status = response.getStatusLine().getStatusCode();
+		if(status != HttpStatus.SC_OK) {
+			String error = EntityUtils.toString(entity, "UTF-8");
+			throw new IOException(
+					"Request failed with status " + status + ": " + error);
+		}
 		
+		return new UserStream(entity.getContent());
+	}
+	
+	private static List<User> toList(UserStream stream) throws IOException {
+		List<User> users = new ArrayList<User>();
 		try {
-			httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
-		} catch(UnsupportedEncodingException e) {
-			LOG.debug("Unable to set post prameters", e);
-			throw new RuntimeException("Unable to set post prameters");
+			while(stream.hasNext())
+				users.add(stream.next());
+		} catch(JsonParseException e) {
+			throw new IOException("Invalid response", e);
+		} finally {
+			stream.close();
 		}
-		
-		HttpResponse response = httpClient.execute(httpPost);
+		return users;
+	}
+	
+	/**
+	 * Reads the whole response, so its connection goes back to the pool.
+	 * 
+	 * @return the response body or null if there is none
+	 */
+	private String execute(HttpUriRequest request) throws IOException {
+		HttpResponse response = httpClient.execute(request);
 		HttpEntity entity = response.getEntity();
-		if(entity != null) {
-			String jsonResponse = IOUtils.toString(entity.getContent());
-			LOG.debug("Register response: {}", jsonResponse);
-			return jsonResponse;
+		try {
+			return entity == null ? null : EntityUtils.toString(entity, "UTF-8");
+		} finally {
+			EntityUtils.consume(entity);
 		}
-		throw new IOException("Unable to register");
-		
 	}
 	
 }
@@ -0,0 +1,156 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Requests of the resolver service, shared by the blocking and the 
+ * asynchronous client.
+ */
+class ResolverRequests {
+	
+	private ResolverRequests() {}
+	
+	static HttpGet searchAll(String serviceEndpoint, String token, 
+			String name) {
+		HttpGet httpGet;
+		try {
+			URIBuilder builder = new URIBuilder(serviceEndpoint + "/search");
+			builder.setParameter("like", name);
+			httpGet = new HttpGet(builder.build());	
+		} catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+		
+		httpGet.setHeader("Authorization", "Bearer " + token);
+		return httpGet;
+	}
+	
+	/**
+	 * @param distance null for the default of the service
+	 */
+	static HttpGet searchFuzzy(String serviceEndpoint, String token, 
+			String query, Integer distance) {
+		HttpGet httpGet;
+		try {
+			URIBuilder builder = new URIBuilder(serviceEndpoint + "/search");
+			builder.setParameter("fuzzy", query);
+			if(distance != null)
+				builder.setParameter("distance", distance.toString());
+			httpGet = new HttpGet(builder.build());
+		} catch(URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+		
+		httpGet.setHeader("Authorization", "Bearer " + token);
+		return httpGet;
+	}
+	
+	static HttpGet search(String serviceEndpoint, String token, String name, 
+			String surname, String nickname) {
+		HttpGet httpGet;
+		try {
+			URIBuilder builder = new URIBuilder(serviceEndpoint + "/search");
+			if(name != null)
+				builder.setParameter("name", name);
+			if(surname != null)
+				builder.setParameter("surname", surname);
+			if(nickname != null)
+				builder.setParameter("nickname", nickname);
+			
+			httpGet = new HttpGet(builder.build());			
+		} catch(URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+		
+		httpGet.setHeader("Authorization", "Bearer " + token);
+		return httpGet;
+	}
+	
+	/**
+	 * The same search as <code>request</code>, for the page starting at the 
+	 * cursor.
+	 */
+	static HttpGet nextPage(HttpGet request, String cursor) {
+		HttpGet httpGet;
+		try {
+			URIBuilder builder = new URIBuilder(request.getURI());
+			builder.setParameter("cursor", cursor);
+			httpGet = new HttpGet(builder.build());
+		} catch(URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+		
+		httpGet.setHeaders(request.getAllHeaders());
+		return httpGet;
+	}
+	
+	static HttpPost register(String serviceEndpoint, String token, 
+			String name, String surname, String nickname, String said) {
+		HttpPost httpPost = new HttpPost(serviceEndpoint + "/register");
+		httpPost.setHeader("Authorization", "Bearer " + token);
+		
+		List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
+		nameValuePairs.add(new BasicNameValuePair("name", name));
+		nameValuePairs.add(new BasicNameValuePair("surname", surname));
+		nameValuePairs.add(new BasicNameValuePair("nickname", nickname));
+		nameValuePairs.add(new BasicNameValuePair("said", said));
+		
+		try {
+			httpPost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+		} catch(UnsupportedEncodingException e) {
+			ResolverClient.LOG.debug("Unable to set post prameters", e);
+			throw new RuntimeException("Unable to set post prameters");
+		}
+		
+		return httpPost;
+	}
+
+	static HttpPost lookup(String serviceEndpoint, String token, 
+			Collection<String> saids) {
+		HttpPost httpPost = new HttpPost(serviceEndpoint + "/lookup");
+		httpPost.setHeader("Authorization", "Bearer " + token);
+		
+		JsonArray array = new JsonArray();
+		for(String said : saids)
+			array.add(new JsonPrimitive(said));
+		try {
+			StringEntity entity = new StringEntity(array.toString(), "UTF-8");
+			entity.setContentType("application/json");
+			httpPost.setEntity(entity);
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		
+		return httpPost;
+	}
+
+}
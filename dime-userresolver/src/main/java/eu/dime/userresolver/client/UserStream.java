@@ -0,0 +1,161 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import eu.dime.userresolver.client.entities.User;
+
+/**
+ * Users of a search response, decoded one at a time while the response is
+ * read. Must be closed unless it has been iterated to the end, otherwise
+ * the connection is not released.
+ *
+ * Decoding errors surface as {@link JsonParseException} from
+ * {@link #hasNext()} and {@link #next()}.
+ */
+public class UserStream implements Iterator<User>, Closeable {
+
+	private final JsonReader reader;
+	private boolean inResult;
+	private boolean closed;
+	private String next;
+
+	/**
+	 * @param content a search response: {"version", "result": [...], "next"}
+	 */
+	public UserStream(InputStream content) throws IOException {
+		reader = new JsonReader(new InputStreamReader(content, "UTF-8"));
+		try {
+			reader.beginObject();
+			inResult = seekResult();
+			if(!inResult)
+				close();
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(!inResult)
+			return false;
+
+		try {
+			if(reader.hasNext())
+				return true;
+
+			reader.endArray();
+			inResult = false;
+			// the cursor may follow the result
+			seekResult();
+			close();
+			return false;
+		} catch(IOException e) {
+			throw new JsonParseException(e);
+		}
+	}
+
+	@Override
+	public User next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+
+		try {
+			return readUser();
+		} catch(IOException e) {
+			throw new JsonParseException(e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return cursor of the next page, once all users have been read
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed)
+			return;
+		closed = true;
+		inResult = false;
+		reader.close();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Reads the members of the response object up to the result array.
+	 *
+	 * @return true if positioned inside the result array, false if the end
+	 * 		of the response object was reached
+	 */
+	private boolean seekResult() throws IOException {
+		while(reader.hasNext()) {
+			String name = reader.nextName();
+			if("result".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				return true;
+			} else if("next".equals(name) && reader.peek() == JsonToken.STRING) {
+				next = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return false;
+	}
+
+	private User readUser() throws IOException {
+		User user = new User();
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String name = reader.nextName();
+			if(reader.peek() != JsonToken.STRING) {
+				reader.skipValue();
+			} else if("said".equals(name)) {
+				user.setSaid(reader.nextString());
+			} else if("name".equals(name)) {
+				user.setName(reader.nextString());
+			} else if("surname".equals(name)) {
+				user.setSurname(reader.nextString());
+			} else if("nickname".equals(name)) {
+				user.setNickname(reader.nextString());
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return user;
+	}
+
+}
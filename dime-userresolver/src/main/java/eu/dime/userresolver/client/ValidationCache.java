@@ -0,0 +1,95 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.dime.userresolver.client.entities.User;
+
+/**
+ * Last results of GET requests together with their ETag, so a request can
+ * be revalidated instead of fetched again. Least recently used entries are
+ * dropped beyond the maximum size.
+ */
+class ValidationCache {
+
+	static final class Entry {
+		final String etag;
+		final List<User> users;
+		/** cursor of the next page, null on the last one */
+		final String next;
+
+		Entry(String etag, List<User> users, String next) {
+			this.etag = etag;
+			this.users = Collections.unmodifiableList(
+					new ArrayList<User>(users));
+			this.next = next;
+		}
+	}
+
+	private final int maxSize;
+	private final Map<String, Entry> entries;
+
+	private long hits;
+	private long misses;
+
+	@SuppressWarnings("serial")
+	ValidationCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, ValidationCache.Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	synchronized Entry get(String uri) {
+		return maxSize > 0 ? entries.get(uri) : null;
+	}
+
+	synchronized void put(String uri, Entry entry) {
+		if(maxSize > 0)
+			entries.put(uri, entry);
+	}
+
+	synchronized void remove(String uri) {
+		entries.remove(uri);
+	}
+
+	/**
+	 * Counts a revalidation: hit if the cached entry was still current.
+	 */
+	synchronized void record(boolean hit) {
+		if(hit)
+			hits++;
+		else
+			misses++;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client.entities;
+
+public class User {
+	
+	private String said;
+	private String name;
+	private String surname;
+	private String nickname;
+	
+	public String getSaid() {
+		return said;
+	}
+
+	public void setSaid(String said) {
+		this.said = said;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getSurname() {
+		return surname;
+	}
+
+	public void setSurname(String surname) {
+		this.surname = surname;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public void setNickname(String nickname) {
+		this.nickname = nickname;
+	}
+
+	public User() {}
+	
+	public User(String said, String name, String surname, String nickname) {
+		this.said = said;
+		this.name = name;
+		this.surname = surname;
+		this.nickname = nickname;
+	}
+
+	@Override
+	public String toString() {
+		return "User [said=" + said + ", name=" + name + ", surname=" 
+				+ surname + ", nickname=" + nickname + "]";
+	}
+
+}
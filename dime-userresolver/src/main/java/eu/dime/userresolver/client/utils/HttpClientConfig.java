@@ -0,0 +1,132 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.client.utils;
+
+/**
+ * Settings of a pooled client created by
+ * {@link HttpUtils#createPooledHttpClient(HttpClientConfig)}. All times are
+ * in milliseconds.
+ */
+public class HttpClientConfig {
+
+	private int maxConnections = 200;
+	private int maxConnectionsPerRoute = 100;
+	private int connectTimeout = 5000;
+	private long poolTimeout = 30000;
+	private int socketTimeout = 30000;
+	private long keepAlive = 30000;
+	private long idleTimeout = 60000;
+	private long evictionInterval = 5000;
+	private int maxInFlight = 1000;
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Connections open at the same time, over all routes.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Connections open at the same time to one host.
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public long getPoolTimeout() {
+		return poolTimeout;
+	}
+
+	/**
+	 * Longest wait for a free connection when the pool is exhausted.
+	 */
+	public void setPoolTimeout(long poolTimeout) {
+		this.poolTimeout = poolTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	/**
+	 * Longest wait for data on an open connection.
+	 */
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * How long a connection is reused when the server sends no keep-alive
+	 * timeout of its own.
+	 */
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Pooled connections unused for longer are closed.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+
+	/**
+	 * Time between two checks for expired and idle connections.
+	 */
+	public void setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Requests an asynchronous client accepts before the completion of
+	 * earlier ones; further requests fail right away.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+}
@@ -14,25 +14,178 @@
 
 package eu.dime.userresolver.client.utils;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class HttpUtils {
-	
+	private static final Logger LOG =
+			LoggerFactory.getLogger(HttpUtils.class);
+
 	public static DefaultHttpClient createHttpClient() {
-		
+
 		DefaultHttpClient httpClient = new DefaultHttpClient();
-		
+		setProxy(httpClient.getParams());
+
+		return httpClient;
+
+	}
+
+	/**
+	 * Creates a thread-safe client backed by a connection pool. Connections
+	 * are kept alive between requests; {@link #startIdleConnectionEvictor}
+	 * closes the ones that are no longer used.
+	 */
+	public static DefaultHttpClient createPooledHttpClient(
+			final HttpClientConfig config) {
+
+		PoolingClientConnectionManager connectionManager =
+				new PoolingClientConnectionManager(
+						SchemeRegistryFactory.createDefault());
+		connectionManager.setMaxTotal(config.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(
+				config.getMaxConnectionsPerRoute());
+
+		DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+		HttpConnectionParams.setConnectionTimeout(
+				httpClient.getParams(), config.getConnectTimeout());
+		HttpConnectionParams.setSoTimeout(
+				httpClient.getParams(), config.getSocketTimeout());
+		HttpClientParams.setConnectionManagerTimeout(
+				httpClient.getParams(), config.getPoolTimeout());
+		httpClient.setKeepAliveStrategy(
+				new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : config.getKeepAlive();
+			}
+		});
+		setProxy(httpClient.getParams());
+
+		return httpClient;
+	}
+
+	/**
+	 * Creates a non-blocking client backed by a connection pool. The client 
+	 * has to be started before use.
+	 */
+	public static DefaultHttpAsyncClient createPooledHttpAsyncClient(
+			final HttpClientConfig config) throws IOReactorException {
+
+		IOReactorConfig reactorConfig = new IOReactorConfig();
+		reactorConfig.setConnectTimeout(config.getConnectTimeout());
+		reactorConfig.setSoTimeout(config.getSocketTimeout());
+
+		PoolingClientAsyncConnectionManager connectionManager =
+				new PoolingClientAsyncConnectionManager(
+						new DefaultConnectingIOReactor(reactorConfig));
+		connectionManager.setMaxTotal(config.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(
+				config.getMaxConnectionsPerRoute());
+
+		DefaultHttpAsyncClient httpClient =
+				new DefaultHttpAsyncClient(connectionManager);
+		HttpConnectionParams.setConnectionTimeout(
+				httpClient.getParams(), config.getConnectTimeout());
+		HttpConnectionParams.setSoTimeout(
+				httpClient.getParams(), config.getSocketTimeout());
+		HttpClientParams.setConnectionManagerTimeout(
+				httpClient.getParams(), config.getPoolTimeout());
+		httpClient.setKeepAliveStrategy(
+				new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : config.getKeepAlive();
+			}
+		});
+		setProxy(httpClient.getParams());
+
+		return httpClient;
+	}
+
+	/**
+	 * Starts a daemon thread closing expired and idle connections of the
+	 * given manager until it is interrupted.
+	 */
+	public static Thread startIdleConnectionEvictor(
+			final ClientConnectionManager connectionManager,
+			final HttpClientConfig config) {
+		return startEvictor(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(
+						config.getIdleTimeout(), TimeUnit.MILLISECONDS);
+			}
+		}, config);
+	}
+
+	/**
+	 * @see #startIdleConnectionEvictor(ClientConnectionManager, HttpClientConfig)
+	 */
+	public static Thread startIdleConnectionEvictor(
+			final PoolingClientAsyncConnectionManager connectionManager,
+			final HttpClientConfig config) {
+		return startEvictor(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(
+						config.getIdleTimeout(), TimeUnit.MILLISECONDS);
+			}
+		}, config);
+	}
+
+	private static Thread startEvictor(final Runnable eviction,
+			final HttpClientConfig config) {
+		Thread evictor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(config.getEvictionInterval());
+						eviction.run();
+					}
+				} catch(InterruptedException e) {
+					LOG.debug("Idle connection evictor stopped");
+				}
+			}
+		}, "resolver-client-evictor");
+		evictor.setDaemon(true);
+		evictor.start();
+
+		return evictor;
+	}
+
+	private static void setProxy(HttpParams params) {
 		String proxyHost = System.getProperty("http.proxyHost");
 		String proxyPort = System.getProperty("http.proxyPort");
 		if ((proxyHost != null) && (proxyPort != null)) {
 			HttpHost proxy = new HttpHost(proxyHost,Integer.parseInt(proxyPort));
-			httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
-		} 
-		
-		return httpClient;
-		
+			params.setParameter(ConnRoutePNames.DEFAULT_PROXY,proxy);
+		}
 	}
 
 }
@@ -0,0 +1,99 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.basicauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cxf.binding.soap.interceptor.SoapHeaderInterceptor;
+import org.apache.cxf.endpoint.Endpoint;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.transport.Conduit;
+import org.apache.cxf.ws.addressing.EndpointReferenceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Basic authentication interceptor answering rejected requests itself,
+ * with an empty body and a challenge, instead of passing them on.
+ */
+abstract class AbstractAuthenticationInterceptor extends SoapHeaderInterceptor {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AbstractAuthenticationInterceptor.class);
+
+	/**
+	 * Sends the response code and stops the in chain, the out chain does
+	 * not run either.
+	 *
+	 * @param realm of the challenge, null for none
+	 */
+	@SuppressWarnings("unchecked")
+	protected void sendErrorResponse(Message message, int responseCode,
+			String realm) {
+		Message outMessage = getOutMessage(message);
+		outMessage.put(Message.RESPONSE_CODE, responseCode);
+
+		Map<String, List<String>> responseHeaders =
+				(Map<String, List<String>>) message.get(Message.PROTOCOL_HEADERS);
+		if(responseHeaders != null) {
+			String challenge = realm == null ?
+					"Basic realm=" : "Basic realm=\"" + realm + "\"";
+			responseHeaders.put("WWW-Authenticate", Arrays.asList(challenge));
+			responseHeaders.put("Content-Length", Arrays.asList("0"));
+		}
+		message.getInterceptorChain().abort();
+		try {
+			getConduit(message).prepare(outMessage);
+			close(outMessage);
+		} catch(IOException e) {
+			LOG.warn(e.getMessage(), e);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private static Message getOutMessage(Message inMessage) {
+		Exchange exchange = inMessage.getExchange();
+		Message outMessage = exchange.getOutMessage();
+		if(outMessage == null) {
+			Endpoint endpoint = exchange.get(Endpoint.class);
+			outMessage = endpoint.getBinding().createMessage();
+			exchange.setOutMessage(outMessage);
+		}
+		outMessage.putAll(inMessage);
+		return outMessage;
+	}
+
+	private static Conduit getConduit(Message inMessage) throws IOException {
+		Exchange exchange = inMessage.getExchange();
+		EndpointReferenceType target =
+				exchange.get(EndpointReferenceType.class);
+		Conduit conduit = exchange.getDestination().getBackChannel(
+				inMessage, null, target);
+		exchange.setConduit(conduit);
+		return conduit;
+	}
+
+	private static void close(Message outMessage) throws IOException {
+		OutputStream os = outMessage.getContent(OutputStream.class);
+		os.flush();
+		os.close();
+	}
+
+}
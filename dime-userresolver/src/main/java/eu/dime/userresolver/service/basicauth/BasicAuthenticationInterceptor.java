@@ -14,42 +14,104 @@
 
 package eu.dime.userresolver.service.basicauth;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.cxf.binding.soap.interceptor.SoapHeaderInterceptor;
 import org.apache.cxf.configuration.security.AuthorizationPolicy;
-import org.apache.cxf.endpoint.Endpoint;
 import org.apache.cxf.interceptor.Fault;
-import org.apache.cxf.message.Exchange;
 import org.apache.cxf.message.Message;
-import org.apache.cxf.transport.Conduit;
-import org.apache.cxf.ws.addressing.EndpointReferenceType;
 import org.apache.log4j.Logger;
 
+import eu.dime.userresolver.service.metrics.MetricsRegistry;
 import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserListener;
 import eu.dime.userresolver.service.user.UserProvider;
+import eu.dime.userresolver.service.utils.ExpiringLruCache;
  
 /**
  * 
  * @author marcel
  *
  */
-public class BasicAuthenticationInterceptor extends SoapHeaderInterceptor {
+public class BasicAuthenticationInterceptor extends AbstractAuthenticationInterceptor {
 
     protected Logger log = Logger.getLogger(getClass());
+    
+    /** the single registration below the address of the user service */
+    private static final String REGISTER_PATH = "/users/register";
         
 	private UserProvider userProvider;
+	private MetricsRegistry metrics;
+	
+	/** said -> key hash that was successfully verified against the provider */
+	private volatile ExpiringLruCache<String, String> credentialCache =
+			new ExpiringLruCache<String, String>(10000, 300000);
+	
+	/** bumped on every invalidation so in-flight lookups do not re-cache */
+	private final AtomicLong generation = new AtomicLong();
 	
 	public void setUserProvider(UserProvider userManager) {
 		this.userProvider = userManager;
+		this.userProvider.addListener(new UserListener() {
+			@Override
+			public void registered(User user) {
+				invalidate(user.getSaid());
+			}
+			
+			@Override
+			public void updated(User user) {
+				invalidate(user.getSaid());
+			}
+			
+			@Override
+			public void removed(User user) {
+				invalidate(user.getSaid());
+			}
+		});
+	}
+	
+	private void invalidate(String said) {
+		generation.incrementAndGet();
+		credentialCache.remove(said);
+	}
+	
+	/**
+	 * Maximum number of verified credentials kept in memory.
+	 */
+	public void setCredentialCacheSize(int size) {
+		credentialCache = new ExpiringLruCache<String, String>(
+				size, credentialCache.getTtlMillis());
+	}
+	
+	/**
+	 * Seconds a verified credential is trusted before the provider is asked 
+	 * again.
+	 */
+	public void setCredentialCacheTtl(long seconds) {
+		credentialCache = new ExpiringLruCache<String, String>(
+				credentialCache.getMaxSize(), seconds * 1000);
+	}
+	
+	/**
+	 * Records the time taken by authentication, and the requests rejected.
+	 */
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+	
+	public ExpiringLruCache<String, String> getCredentialCache() {
+		return credentialCache;
+	}
+	
+	public long getCredentialCacheHits() {
+		return credentialCache.getHits();
+	}
+	
+	public long getCredentialCacheMisses() {
+		return credentialCache.getMisses();
 	}
     
     /**
@@ -75,17 +137,15 @@ public class BasicAuthenticationInterceptor extends SoapHeaderInterceptor {
             sendErrorResponse(message, HttpURLConnection.HTTP_UNAUTHORIZED);
             return;
         }
-        String address;
-        if (message != null && message.get(Message.ENDPOINT_ADDRESS) != null){
-        	address = message.get(Message.ENDPOINT_ADDRESS).toString();
-        } else {
-        	address = "";
-        }
-        if (!address.endsWith("register")){
-	        User user = userProvider.getBySaid(policy.getUserName());
+        if (!isOpen(message)){
+	        long start = System.nanoTime();
 	        String key = DigestUtils.sha256Hex(policy.getPassword());
+	        boolean valid = isValid(policy.getUserName(), key);
+	        if (metrics != null) {
+	            metrics.addAuthTime(message.getExchange(), System.nanoTime() - start);
+	        }
 	
-	        if (!user.getKey().equals(key)) {
+	        if (!valid) {
 	            log.warn("Invalid username or password for user: " + policy.getUserName());
 	            sendErrorResponse(message, HttpURLConnection.HTTP_FORBIDDEN);
 	            return;
@@ -93,50 +153,45 @@ public class BasicAuthenticationInterceptor extends SoapHeaderInterceptor {
         }
     }
     
-    private void sendErrorResponse(Message message, int responseCode) {
-        Message outMessage = getOutMessage(message);
-        outMessage.put(Message.RESPONSE_CODE, responseCode);
-        
-        // Set the response headers
-        Map<String, List<String>> responseHeaders =
-            (Map<String, List<String>>)message.get(Message.PROTOCOL_HEADERS);
-        if (responseHeaders != null) {
-            responseHeaders.put("WWW-Authenticate", Arrays.asList("Basic realm="));
-            responseHeaders.put("Content-Length", Arrays.asList("0"));
-        }
-        message.getInterceptorChain().abort();
-        try {
-            getConduit(message).prepare(outMessage);
-            close(outMessage);
-        } catch (IOException e) {
-            log.warn(e.getMessage(), e);
-        }
-    }
-    
-    private Message getOutMessage(Message inMessage) {
-        Exchange exchange = inMessage.getExchange();
-        Message outMessage = exchange.getOutMessage();
-        if (outMessage == null) {
-            Endpoint endpoint = exchange.get(Endpoint.class);
-            outMessage = endpoint.getBinding().createMessage();
-            exchange.setOutMessage(outMessage);
-        }
-        outMessage.putAll(inMessage);
-        return outMessage;
+    /**
+     * Only the registration of a single user is open to anyone; bulk 
+     * registration at /bulk/register needs the credentials of a 
+     * registered user.
+     */
+    private static boolean isOpen(Message message) {
+    	Object uri = message.get(Message.REQUEST_URI);
+    	if (uri == null)
+    		return false;
+    	String path = uri.toString();
+    	if (path.endsWith("/"))
+    		path = path.substring(0, path.length() - 1);
+    	return path.endsWith(REGISTER_PATH);
     }
     
-    private Conduit getConduit(Message inMessage) throws IOException {
-        Exchange exchange = inMessage.getExchange();
-        EndpointReferenceType target = exchange.get(EndpointReferenceType.class);
-        Conduit conduit =
-            exchange.getDestination().getBackChannel(inMessage, null, target);
-        exchange.setConduit(conduit);
-        return conduit;
+    private boolean isValid(String said, String key) {
+    	ExpiringLruCache<String, String> cache = credentialCache;
+    	if (key.equals(cache.get(said))) {
+    		return true;
+    	}
+    	
+    	long before = generation.get();
+    	User user = userProvider.getBySaid(said);
+    	if (!key.equals(user.getKey())) {
+    		return false;
+    	}
+    	
+    	if (generation.get() == before) {
+    		cache.put(said, key);
+    	}
+    	return true;
     }
     
-    private void close(Message outMessage) throws IOException {
-        OutputStream os = outMessage.getContent(OutputStream.class);
-        os.flush();
-        os.close();
+    private void sendErrorResponse(Message message, int responseCode) {
+        sendErrorResponse(message, responseCode, null);
+        
+        // the out chain does not run for an aborted request
+        if (metrics != null) {
+            metrics.requestCompleted(message.getExchange(), responseCode);
+        }
     }
 }
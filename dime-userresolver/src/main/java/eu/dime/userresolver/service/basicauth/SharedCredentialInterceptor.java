@@ -0,0 +1,94 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.basicauth;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.cxf.configuration.security.AuthorizationPolicy;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Basic authentication against a single user name and password, for the
+ * endpoints that are not meant for the users of the registry, like metrics
+ * and replication. The credential of a realm is read from the properties
+ * <code>[realm].user</code> and <code>[realm].password</code> of
+ * /application.properties; while the password is empty every request is
+ * refused.
+ */
+public class SharedCredentialInterceptor
+		extends AbstractAuthenticationInterceptor {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SharedCredentialInterceptor.class);
+
+	private static final String PROPERTIES_URI =
+			"/application.properties";
+
+	private String realm;
+	private String userName;
+	/** SHA-256 of the password, null if none is configured */
+	private byte[] passwordHash;
+
+	/**
+	 * Loads the credential of the realm, e.g. "metrics".
+	 */
+	public void setRealm(String realm) {
+		Properties properties = new Properties();
+		try {
+			properties.load(SharedCredentialInterceptor.class
+					.getResourceAsStream(PROPERTIES_URI));
+		} catch(IOException e) {
+			throw new RuntimeException("Unable to load properties", e);
+		}
+
+		this.realm = realm;
+		userName = properties.getProperty(realm + ".user", realm);
+		String password = properties.getProperty(realm + ".password", "");
+		if(password.length() == 0) {
+			LOG.warn("No {}.password configured, refusing all requests",
+					realm);
+			passwordHash = null;
+		} else {
+			passwordHash = DigestUtils.sha256(password);
+		}
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault {
+		AuthorizationPolicy policy = message.get(AuthorizationPolicy.class);
+		if(policy == null || policy.getUserName() == null
+				|| policy.getPassword() == null) {
+			sendErrorResponse(message, HttpURLConnection.HTTP_UNAUTHORIZED,
+					realm);
+			return;
+		}
+
+		// compares the hashes in constant time
+		if(passwordHash == null || !userName.equals(policy.getUserName())
+				|| !MessageDigest.isEqual(passwordHash,
+						DigestUtils.sha256(policy.getPassword()))) {
+			LOG.warn("Invalid credentials for realm {} from user {}", realm,
+					policy.getUserName());
+			sendErrorResponse(message, HttpURLConnection.HTTP_FORBIDDEN, realm);
+		}
+	}
+
+}
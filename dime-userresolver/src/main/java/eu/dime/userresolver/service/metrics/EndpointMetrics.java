@@ -0,0 +1,76 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests of one endpoint. Besides the total latency, the time spent in
+ * authentication, in the user provider and in writing the response is
+ * recorded separately for every request.
+ */
+public class EndpointMetrics {
+
+	private final Timer requests = new Timer();
+	private final AtomicLong clientErrors = new AtomicLong();
+
+	private final LatencyHistogram auth = new LatencyHistogram();
+	private final LatencyHistogram db = new LatencyHistogram();
+	private final LatencyHistogram serialization = new LatencyHistogram();
+
+	/**
+	 * @param status HTTP status of the response; 4xx count as client
+	 * 		errors, 5xx as errors
+	 */
+	public void record(int status, long totalNanos, long authNanos,
+			long dbNanos, long serializationNanos) {
+		requests.record(totalNanos, status >= 500);
+		if(status >= 400 && status < 500)
+			clientErrors.incrementAndGet();
+
+		auth.record(authNanos);
+		db.record(dbNanos);
+		serialization.record(serializationNanos);
+	}
+
+	public long getCount() {
+		return requests.getCount();
+	}
+
+	public long getErrors() {
+		return requests.getErrors();
+	}
+
+	public long getClientErrors() {
+		return clientErrors.get();
+	}
+
+	public LatencyHistogram getLatency() {
+		return requests.getLatency();
+	}
+
+	public LatencyHistogram getAuth() {
+		return auth;
+	}
+
+	public LatencyHistogram getDb() {
+		return db;
+	}
+
+	public LatencyHistogram getSerialization() {
+		return serialization;
+	}
+
+}
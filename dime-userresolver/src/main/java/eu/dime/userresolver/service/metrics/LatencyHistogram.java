@@ -0,0 +1,110 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, laid out like
+ * HdrHistogram: values below 128 have a bucket each, above every power of
+ * two is split into 64 buckets. Percentiles are thus exact to within 1.6%,
+ * whatever their magnitude, in a fixed 18 KB of counters.
+ *
+ * Recording never blocks; percentiles read while values are recorded may
+ * miss the latest ones.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** longer durations are recorded as this one, about 18 minutes */
+	private static final long MAX_VALUE = (1L << 40) - 1;
+
+	private final AtomicLongArray counts =
+			new AtomicLongArray(index(MAX_VALUE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the largest value recorded in the bucket holding the
+	 * 		percentile, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for(int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		if(total == 0)
+			return 0;
+
+		double fraction = Math.max(0, Math.min(percentile, 100)) / 100;
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+
+		long seen = 0;
+		for(int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	/*
+	 * The top 7 bits of a value select its bucket, the position of the
+	 * highest bit the range of buckets. Values below 128 map onto
+	 * themselves.
+	 */
+	static int index(long value) {
+		int shift = Math.max(0,
+				64 - SUB_BUCKET_BITS - Long.numberOfLeadingZeros(value));
+		return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+	}
+
+	static long highestValue(int index) {
+		int shift = Math.max(0, (index >> (SUB_BUCKET_BITS - 1)) - 1);
+		long top = index - (shift << (SUB_BUCKET_BITS - 1));
+		return ((top + 1) << shift) - 1;
+	}
+
+}
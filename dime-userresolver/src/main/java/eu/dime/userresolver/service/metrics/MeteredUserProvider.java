@@ -0,0 +1,246 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserListener;
+import eu.dime.userresolver.service.user.UserPage;
+import eu.dime.userresolver.service.user.UserProvider;
+import eu.dime.userresolver.service.user.UserVisitor;
+
+/**
+ * Times every call to another {@link UserProvider}, per operation, and adds
+ * the time to the request being handled. Put it right in front of the
+ * provider backed by the database, so that cache hits are not counted.
+ *
+ * {@link #visitAll(UserVisitor)} includes the time the visitor takes.
+ */
+public class MeteredUserProvider implements UserProvider {
+
+	private UserProvider delegate;
+	private MetricsRegistry metrics;
+
+	public void setDelegate(UserProvider delegate) {
+		this.delegate = delegate;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public User register(User user) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			User result = delegate.register(user);
+			failed = false;
+			return result;
+		} finally {
+			record("register", start, failed);
+		}
+	}
+
+	@Override
+	public List<String> registerAll(List<User> users) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<String> result = delegate.registerAll(users);
+			failed = false;
+			return result;
+		} finally {
+			record("registerAll", start, failed);
+		}
+	}
+
+	@Override
+	public List<User> search(String name, String surname, String nickname) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<User> result = delegate.search(name, surname, nickname);
+			failed = false;
+			return result;
+		} finally {
+			record("search", start, failed);
+		}
+	}
+
+	@Override
+	public List<User> searchAll(String query) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<User> result = delegate.searchAll(query);
+			failed = false;
+			return result;
+		} finally {
+			record("searchAll", start, failed);
+		}
+	}
+
+	@Override
+	public List<User> searchAllLike(String query) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<User> result = delegate.searchAllLike(query);
+			failed = false;
+			return result;
+		} finally {
+			record("searchAllLike", start, failed);
+		}
+	}
+
+	@Override
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			UserPage result = delegate.search(
+					name, surname, nickname, cursor, limit);
+			failed = false;
+			return result;
+		} finally {
+			record("searchPage", start, failed);
+		}
+	}
+
+	@Override
+	public UserPage searchAll(String query, String cursor, int limit) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			UserPage result = delegate.searchAll(query, cursor, limit);
+			failed = false;
+			return result;
+		} finally {
+			record("searchAllPage", start, failed);
+		}
+	}
+
+	@Override
+	public UserPage searchAllLike(String query, String cursor, int limit) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			UserPage result = delegate.searchAllLike(query, cursor, limit);
+			failed = false;
+			return result;
+		} finally {
+			record("searchAllLikePage", start, failed);
+		}
+	}
+
+	@Override
+	public UserPage searchFuzzy(String query, int maxDistance, String cursor,
+			int limit) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			UserPage result = delegate.searchFuzzy(
+					query, maxDistance, cursor, limit);
+			failed = false;
+			return result;
+		} finally {
+			record("searchFuzzyPage", start, failed);
+		}
+	}
+
+	@Override
+	public void visitAll(UserVisitor visitor) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			delegate.visitAll(visitor);
+			failed = false;
+		} finally {
+			record("visitAll", start, failed);
+		}
+	}
+
+	@Override
+	public User getBySaid(String said) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			User result = delegate.getBySaid(said);
+			failed = false;
+			return result;
+		} finally {
+			record("getBySaid", start, failed);
+		}
+	}
+
+	@Override
+	public List<User> getBySaids(Collection<String> saids) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<User> result = delegate.getBySaids(saids);
+			failed = false;
+			return result;
+		} finally {
+			record("getBySaids", start, failed);
+		}
+	}
+
+	@Override
+	public User update(String said, String name, String surname,
+			String nickname) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			User result = delegate.update(said, name, surname, nickname);
+			failed = false;
+			return result;
+		} finally {
+			record("update", start, failed);
+		}
+	}
+
+	@Override
+	public User remove(String said) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			User result = delegate.remove(said);
+			failed = false;
+			return result;
+		} finally {
+			record("remove", start, failed);
+		}
+	}
+
+	@Override
+	public void addListener(UserListener listener) {
+		delegate.addListener(listener);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void record(String operation, long start, boolean failed) {
+		long nanos = System.nanoTime() - start;
+		metrics.getOperation(operation).record(nanos, failed);
+		metrics.addDbTime(nanos);
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+/**
+ * Starts the timing of a request, before any other interceptor has seen
+ * it. The request is recorded by the {@link MetricsOutInterceptor} once
+ * the response has been sent.
+ */
+public class MetricsInInterceptor extends AbstractPhaseInterceptor<Message> {
+
+	private MetricsRegistry metrics;
+
+	public MetricsInInterceptor() {
+		super(Phase.RECEIVE);
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault {
+		metrics.requestStarted(message.getExchange());
+	}
+
+}
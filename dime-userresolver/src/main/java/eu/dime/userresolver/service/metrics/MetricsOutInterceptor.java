@@ -0,0 +1,90 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+/**
+ * Times the writing of the response and records the request when it has
+ * been sent. Belongs into both the out and the out fault chain, so that
+ * failed requests are counted as well.
+ */
+public class MetricsOutInterceptor extends AbstractPhaseInterceptor<Message> {
+
+	private final MarshalEndingInterceptor marshalEnding =
+			new MarshalEndingInterceptor();
+	private final CompletionInterceptor completion =
+			new CompletionInterceptor();
+
+	private MetricsRegistry metrics;
+
+	public MetricsOutInterceptor() {
+		super(Phase.PRE_MARSHAL);
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault {
+		metrics.marshalStarted(message.getExchange());
+		message.getInterceptorChain().add(marshalEnding);
+		message.getInterceptorChain().add(completion);
+	}
+
+	private static int status(Message message) {
+		Integer status = (Integer) message.get(Message.RESPONSE_CODE);
+		if(status != null)
+			return status;
+		return message == message.getExchange().getOutFaultMessage() ? 500 : 200;
+	}
+
+	/**
+	 * Runs right after the response entity has been written.
+	 */
+	private class MarshalEndingInterceptor
+			extends AbstractPhaseInterceptor<Message> {
+
+		MarshalEndingInterceptor() {
+			super(Phase.POST_MARSHAL);
+		}
+
+		@Override
+		public void handleMessage(Message message) throws Fault {
+			metrics.marshalEnded(message.getExchange());
+		}
+	}
+
+	/**
+	 * Runs last, after the response has been flushed to the client.
+	 */
+	private class CompletionInterceptor
+			extends AbstractPhaseInterceptor<Message> {
+
+		CompletionInterceptor() {
+			super(Phase.SETUP_ENDING);
+		}
+
+		@Override
+		public void handleMessage(Message message) throws Fault {
+			metrics.requestCompleted(message.getExchange(), status(message));
+		}
+	}
+
+}
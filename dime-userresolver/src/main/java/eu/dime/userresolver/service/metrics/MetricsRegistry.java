@@ -0,0 +1,186 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cxf.jaxrs.model.OperationResourceInfo;
+import org.apache.cxf.jaxrs.model.URITemplate;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+
+/**
+ * Metrics of the service: one {@link EndpointMetrics} per HTTP method and
+ * path template, one {@link Timer} per user provider operation.
+ *
+ * The timing of a request in progress travels with its CXF exchange; the
+ * interceptors and the metered provider add to it, the last one to see the
+ * request records it.
+ */
+public class MetricsRegistry {
+
+	/** requests of further endpoints are recorded under {@link #OTHER} */
+	public static final int MAX_ENDPOINTS = 100;
+	public static final String OTHER = "other";
+
+	/**
+	 * Timing of a request in progress.
+	 */
+	static final class RequestTiming {
+		final long start = System.nanoTime();
+		long auth;
+		long db;
+		long marshalStart;
+		long serialization;
+		boolean completed;
+	}
+
+	private final long started = System.currentTimeMillis();
+
+	private final ConcurrentMap<String, EndpointMetrics> endpoints =
+			new ConcurrentHashMap<String, EndpointMetrics>();
+	private final ConcurrentMap<String, Timer> operations =
+			new ConcurrentHashMap<String, Timer>();
+
+	public long getStarted() {
+		return started;
+	}
+
+	public EndpointMetrics getEndpoint(String name) {
+		EndpointMetrics metrics = endpoints.get(name);
+		if(metrics != null)
+			return metrics;
+
+		if(endpoints.size() >= MAX_ENDPOINTS)
+			name = OTHER;
+		metrics = new EndpointMetrics();
+		EndpointMetrics existing = endpoints.putIfAbsent(name, metrics);
+		return existing == null ? metrics : existing;
+	}
+
+	public Timer getOperation(String name) {
+		Timer timer = operations.get(name);
+		if(timer != null)
+			return timer;
+
+		timer = new Timer();
+		Timer existing = operations.putIfAbsent(name, timer);
+		return existing == null ? timer : existing;
+	}
+
+	/**
+	 * @return the endpoints by name
+	 */
+	public SortedMap<String, EndpointMetrics> getEndpoints() {
+		return Collections.unmodifiableSortedMap(
+				new TreeMap<String, EndpointMetrics>(endpoints));
+	}
+
+	/**
+	 * @return the user provider operations by name
+	 */
+	public SortedMap<String, Timer> getOperations() {
+		return Collections.unmodifiableSortedMap(
+				new TreeMap<String, Timer>(operations));
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	void requestStarted(Exchange exchange) {
+		exchange.put(RequestTiming.class, new RequestTiming());
+	}
+
+	void marshalStarted(Exchange exchange) {
+		RequestTiming timing = exchange.get(RequestTiming.class);
+		if(timing != null)
+			timing.marshalStart = System.nanoTime();
+	}
+
+	void marshalEnded(Exchange exchange) {
+		RequestTiming timing = exchange.get(RequestTiming.class);
+		if(timing != null && timing.marshalStart != 0)
+			timing.serialization += System.nanoTime() - timing.marshalStart;
+	}
+
+	/**
+	 * Adds time spent authenticating the request of the exchange.
+	 */
+	public void addAuthTime(Exchange exchange, long nanos) {
+		RequestTiming timing = exchange.get(RequestTiming.class);
+		if(timing != null)
+			timing.auth += nanos;
+	}
+
+	/**
+	 * Adds time spent in the user provider to the request handled by the
+	 * current thread, if there is one.
+	 */
+	public void addDbTime(long nanos) {
+		Message message = PhaseInterceptorChain.getCurrentMessage();
+		if(message == null || message.getExchange() == null)
+			return;
+
+		RequestTiming timing = message.getExchange().get(RequestTiming.class);
+		if(timing != null)
+			timing.db += nanos;
+	}
+
+	/**
+	 * Records the request of the exchange, once; later calls are ignored.
+	 */
+	public void requestCompleted(Exchange exchange, int status) {
+		RequestTiming timing = exchange.get(RequestTiming.class);
+		if(timing == null || timing.completed)
+			return;
+		timing.completed = true;
+
+		getEndpoint(endpointName(exchange)).record(status,
+				System.nanoTime() - timing.start, timing.auth, timing.db,
+				timing.serialization);
+	}
+
+	/**
+	 * Names the endpoint by the HTTP method and the path templates of the
+	 * matched resource method below the address of its server, so that
+	 * path parameters and requests of unknown paths do not add endpoints.
+	 * Requests no resource method matched are recorded under {@link #OTHER}.
+	 */
+	private static String endpointName(Exchange exchange) {
+		Message in = exchange.getInMessage();
+		OperationResourceInfo operation =
+				exchange.get(OperationResourceInfo.class);
+		if(in == null || operation == null)
+			return OTHER;
+
+		Object base = in.get(Message.BASE_PATH);
+		String path = (base == null ? "" : base.toString())
+				+ template(operation.getClassResourceInfo().getURITemplate())
+				+ template(operation.getURITemplate());
+		path = path.replaceAll("/+", "/");
+		if(path.length() > 1 && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		return operation.getHttpMethod() + " " + path;
+	}
+
+	private static String template(URITemplate template) {
+		return template == null ? "" : "/" + template.getValue();
+	}
+
+}
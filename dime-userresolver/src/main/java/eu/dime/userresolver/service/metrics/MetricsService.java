@@ -0,0 +1,302 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import eu.dime.userresolver.service.basicauth.BasicAuthenticationInterceptor;
+import eu.dime.userresolver.service.oauth.MappedTokenOAuthProvider;
+import eu.dime.userresolver.service.oauth.MemoryOAuthProvider;
+import eu.dime.userresolver.service.user.CachingUserProvider;
+
+/**
+ * Read-only view of the {@link MetricsRegistry} and of the counters of the
+ * providers and caches it is given. Counts are totals since startup,
+ * latencies are in microseconds.
+ */
+@Path("/")
+public class MetricsService {
+
+	private class LatencyResponse {
+		@SuppressWarnings("unused")
+		public long count;
+		@SuppressWarnings("unused")
+		public double mean;
+		@SuppressWarnings("unused")
+		public long p50;
+		@SuppressWarnings("unused")
+		public long p99;
+		@SuppressWarnings("unused")
+		public long p999;
+		@SuppressWarnings("unused")
+		public long max;
+
+		public LatencyResponse(LatencyHistogram histogram) {
+			count = histogram.getCount();
+			mean = Math.round(histogram.getMean() / 100) / 10.0;
+			p50 = micros(histogram.getValueAtPercentile(50));
+			p99 = micros(histogram.getValueAtPercentile(99));
+			p999 = micros(histogram.getValueAtPercentile(99.9));
+			max = micros(histogram.getMax());
+		}
+	}
+
+	private class EndpointResponse {
+		@SuppressWarnings("unused")
+		public long requests;
+		@SuppressWarnings("unused")
+		public long errors;
+		@SuppressWarnings("unused")
+		public long clientErrors;
+		@SuppressWarnings("unused")
+		public LatencyResponse latency;
+		@SuppressWarnings("unused")
+		public LatencyResponse auth;
+		@SuppressWarnings("unused")
+		public LatencyResponse db;
+		@SuppressWarnings("unused")
+		public LatencyResponse serialization;
+	}
+
+	private class OperationResponse {
+		@SuppressWarnings("unused")
+		public long calls;
+		@SuppressWarnings("unused")
+		public long errors;
+		@SuppressWarnings("unused")
+		public LatencyResponse latency;
+	}
+
+	private class CredentialsResponse {
+		@SuppressWarnings("unused")
+		public int entries;
+		@SuppressWarnings("unused")
+		public long hits;
+		@SuppressWarnings("unused")
+		public long misses;
+	}
+
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	private class OAuthResponse {
+		@SuppressWarnings("unused")
+		public int liveAccessTokens;
+		@SuppressWarnings("unused")
+		public long expiredAccessTokens;
+		@SuppressWarnings("unused")
+		public int liveCodeGrants;
+		@SuppressWarnings("unused")
+		public long expiredCodeGrants;
+		@SuppressWarnings("unused")
+		public int clients;
+		@SuppressWarnings("unused")
+		public long evictedClients;
+		/** bytes, for tokens kept in a mapped file only */
+		@SuppressWarnings("unused")
+		public Integer tokenFileSize;
+	}
+
+	private class CacheResponse {
+		@SuppressWarnings("unused")
+		public int users;
+		@SuppressWarnings("unused")
+		public int searches;
+		@SuppressWarnings("unused")
+		public double hitRatio;
+		@SuppressWarnings("unused")
+		public long evictions;
+		@SuppressWarnings("unused")
+		public long loads;
+		@SuppressWarnings("unused")
+		public double loadMean;
+	}
+
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	private class MetricsResponse {
+		@SuppressWarnings("unused")
+		public String version = apiVersion;
+		@SuppressWarnings("unused")
+		public long uptime;
+		public Map<String, EndpointResponse> endpoints =
+				new LinkedHashMap<String, EndpointResponse>();
+		public Map<String, OperationResponse> provider =
+				new LinkedHashMap<String, OperationResponse>();
+		@SuppressWarnings("unused")
+		public CacheResponse cache;
+		@SuppressWarnings("unused")
+		public CredentialsResponse credentials;
+		@SuppressWarnings("unused")
+		public OAuthResponse oauth;
+	}
+
+	private static final String apiVersion = "0.1";
+
+	private MetricsRegistry metrics;
+	private CachingUserProvider cachingUserProvider;
+	private BasicAuthenticationInterceptor basicAuthInterceptor;
+	private MemoryOAuthProvider oauthProvider;
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Reports the hits and loads of the caches in front of the provider.
+	 */
+	public void setCachingUserProvider(
+			CachingUserProvider cachingUserProvider) {
+		this.cachingUserProvider = cachingUserProvider;
+	}
+
+	/**
+	 * Reports the cache of verified credentials of the interceptor.
+	 */
+	public void setBasicAuthInterceptor(
+			BasicAuthenticationInterceptor basicAuthInterceptor) {
+		this.basicAuthInterceptor = basicAuthInterceptor;
+	}
+
+	/**
+	 * Reports the tokens, code grants and clients of the provider.
+	 */
+	public void setOauthProvider(MemoryOAuthProvider oauthProvider) {
+		this.oauthProvider = oauthProvider;
+	}
+
+	/**
+	 *  http://[url]/
+	 *
+	 *  {
+	 *	version: "0.1",
+	 *	uptime: SECONDS,
+	 *	endpoints: {
+	 *		"GET /users/search": {
+	 *			requests: N, errors: N, clientErrors: N,
+	 *			latency: {count, mean, p50, p99, p999, max},
+	 *			auth: {...}, db: {...}, serialization: {...}
+	 *		}
+	 *	},
+	 *	provider: {
+	 *		"searchPage": {calls: N, errors: N, latency: {...}}
+	 *	},
+	 *	cache: {
+	 *		users: N, searches: N, hitRatio: 0..1, evictions: N,
+	 *		loads: N, loadMean: MICROS
+	 *	},
+	 *	credentials: {entries: N, hits: N, misses: N},
+	 *	oauth: {
+	 *		liveAccessTokens: N, expiredAccessTokens: N,
+	 *		liveCodeGrants: N, expiredCodeGrants: N,
+	 *		clients: N, evictedClients: N, tokenFileSize: BYTES
+	 *	}
+	 *  }
+	 */
+	@GET
+	@Produces ("application/json")
+	public Response metrics() {
+		MetricsResponse response = new MetricsResponse();
+		response.uptime =
+				(System.currentTimeMillis() - metrics.getStarted()) / 1000;
+
+		for(Map.Entry<String, EndpointMetrics> entry :
+				metrics.getEndpoints().entrySet()) {
+			EndpointMetrics endpoint = entry.getValue();
+
+			EndpointResponse endpointResponse = new EndpointResponse();
+			endpointResponse.requests = endpoint.getCount();
+			endpointResponse.errors = endpoint.getErrors();
+			endpointResponse.clientErrors = endpoint.getClientErrors();
+			endpointResponse.latency =
+					new LatencyResponse(endpoint.getLatency());
+			endpointResponse.auth = new LatencyResponse(endpoint.getAuth());
+			endpointResponse.db = new LatencyResponse(endpoint.getDb());
+			endpointResponse.serialization =
+					new LatencyResponse(endpoint.getSerialization());
+			response.endpoints.put(entry.getKey(), endpointResponse);
+		}
+
+		for(Map.Entry<String, Timer> entry :
+				metrics.getOperations().entrySet()) {
+			OperationResponse operationResponse = new OperationResponse();
+			operationResponse.calls = entry.getValue().getCount();
+			operationResponse.errors = entry.getValue().getErrors();
+			operationResponse.latency =
+					new LatencyResponse(entry.getValue().getLatency());
+			response.provider.put(entry.getKey(), operationResponse);
+		}
+
+		if(cachingUserProvider != null)
+			response.cache = cache(cachingUserProvider);
+		if(basicAuthInterceptor != null)
+			response.credentials = credentials(basicAuthInterceptor);
+		if(oauthProvider != null)
+			response.oauth = oauth(oauthProvider);
+
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoStore(true);
+		return Response.ok(response).cacheControl(cacheControl).build();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private CacheResponse cache(CachingUserProvider provider) {
+		CacheResponse cache = new CacheResponse();
+		cache.users = provider.getUserCache().size();
+		cache.searches = provider.getSearchCache().size();
+		cache.hitRatio = Math.round(provider.getHitRatio() * 1000) / 1000.0;
+		cache.evictions = provider.getEvictions();
+		cache.loads = provider.getLoads();
+		cache.loadMean =
+				Math.round(provider.getAverageLoadMillis() * 10000) / 10.0;
+		return cache;
+	}
+
+	private CredentialsResponse credentials(
+			BasicAuthenticationInterceptor interceptor) {
+		CredentialsResponse credentials = new CredentialsResponse();
+		credentials.entries = interceptor.getCredentialCache().size();
+		credentials.hits = interceptor.getCredentialCacheHits();
+		credentials.misses = interceptor.getCredentialCacheMisses();
+		return credentials;
+	}
+
+	private OAuthResponse oauth(MemoryOAuthProvider provider) {
+		OAuthResponse oauth = new OAuthResponse();
+		oauth.liveAccessTokens = provider.getLiveAccessTokens();
+		oauth.expiredAccessTokens = provider.getExpiredAccessTokens();
+		oauth.liveCodeGrants = provider.getLiveCodeGrants();
+		oauth.expiredCodeGrants = provider.getExpiredCodeGrants();
+		oauth.clients = provider.getClients();
+		oauth.evictedClients = provider.getEvictedClients();
+		if(provider instanceof MappedTokenOAuthProvider) {
+			oauth.tokenFileSize =
+					((MappedTokenOAuthProvider) provider).getTokenFileSize();
+		}
+		return oauth;
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+}
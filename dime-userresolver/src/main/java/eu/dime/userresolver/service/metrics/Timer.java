@@ -0,0 +1,45 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls, failed calls and latency of one operation.
+ */
+public class Timer {
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+
+	public void record(long nanos, boolean failed) {
+		latency.record(nanos);
+		if(failed)
+			errors.incrementAndGet();
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+}
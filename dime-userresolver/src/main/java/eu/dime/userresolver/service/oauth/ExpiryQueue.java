@@ -0,0 +1,84 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys ordered by their expiry time. {@link #sweep(Expirer)} hands out every
+ * key that is due, cheapest first, without looking at the ones that are not.
+ */
+class ExpiryQueue<K> {
+
+	interface Expirer<K> {
+		/**
+		 * @return true if the key was still stored and has been removed
+		 */
+		public boolean expire(K key);
+	}
+
+	private static class Entry<K> implements Delayed {
+		final K key;
+		final long expiresAt;
+
+		Entry(K key, long expiresAt) {
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(expiresAt - System.currentTimeMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long delta = expiresAt - ((Entry<?>) other).expiresAt;
+			return delta < 0 ? -1 : (delta == 0 ? 0 : 1);
+		}
+	}
+
+	private final DelayQueue<Entry<K>> queue = new DelayQueue<Entry<K>>();
+
+	/**
+	 * @param expiresAt epoch milliseconds
+	 */
+	public void schedule(K key, long expiresAt) {
+		queue.add(new Entry<K>(key, expiresAt));
+	}
+
+	/**
+	 * Expires all keys that are due.
+	 *
+	 * @return number of keys the expirer actually removed
+	 */
+	public int sweep(Expirer<K> expirer) {
+		int removed = 0;
+		Entry<K> entry;
+		while((entry = queue.poll()) != null) {
+			if(expirer.expire(entry.key))
+				removed++;
+		}
+		return removed;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+}
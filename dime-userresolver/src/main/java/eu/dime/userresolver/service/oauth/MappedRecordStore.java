@@ -0,0 +1,412 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only key/value log in a memory-mapped file. Values stay in the
+ * mapped file, the heap only holds the position of the latest record of
+ * every key. Records that are removed or expired are dropped when the file
+ * is compacted.
+ *
+ * File layout: magic, version, then records of
+ * <pre>
+ * int length, byte type, long expiresAt, UTF key, int size, byte[size] value
+ * </pre>
+ * The length is written after the rest of the record, so a record cut short
+ * by a crash reads as the end of the log.
+ */
+class MappedRecordStore {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(MappedRecordStore.class);
+
+	private static final int MAGIC = 0x444d5453;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private final File file;
+	private final int initialSize;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/** end of the last record, where the next one is appended */
+	private int writePosition;
+	/** bytes taken by records that are still reachable */
+	private long liveBytes;
+
+	/** key -> position of its latest put record */
+	private final ConcurrentMap<String, Integer> index =
+			new ConcurrentHashMap<String, Integer>();
+
+	private final ExpiryQueue<String> expiry = new ExpiryQueue<String>();
+
+	/*
+	 * Reads only take the read lock; appending may remap the file and
+	 * compaction moves every record, so both take the write lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Opens the log and restores all records that have not expired.
+	 *
+	 * @param initialSize bytes mapped for a new file; the mapping doubles
+	 * 		whenever it runs full
+	 */
+	public MappedRecordStore(File file, int initialSize) throws IOException {
+		this.file = file;
+		this.initialSize = initialSize;
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				Math.max(channel.size(), initialSize));
+
+		if(buffer.getInt(0) == 0) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+		} else if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a record store: " + file);
+		}
+
+		restore();
+	}
+
+	/**
+	 * @param expiresAt epoch milliseconds after which the value is dropped
+	 */
+	public void put(String key, long expiresAt, byte[] value)
+			throws IOException {
+		lock.writeLock().lock();
+		try {
+			int position = append(PUT, key, expiresAt, value);
+			Integer previous = index.put(key, position);
+			if(previous != null)
+				liveBytes -= recordSize(previous);
+			liveBytes += recordSize(position);
+			expiry.schedule(key, expiresAt);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the value, or null if the key is unknown or expired
+	 */
+	public byte[] get(String key) {
+		lock.readLock().lock();
+		try {
+			Integer position = index.get(key);
+			if(position == null)
+				return null;
+
+			ByteBuffer record = buffer.duplicate();
+			record.position(position + 5);
+			if(record.getLong() <= System.currentTimeMillis())
+				return null;
+
+			skipUTF(record);
+			byte[] value = new byte[record.getInt()];
+			record.get(value);
+			return value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the key was stored
+	 */
+	public boolean remove(String key) throws IOException {
+		lock.writeLock().lock();
+		try {
+			Integer position = index.remove(key);
+			if(position == null)
+				return false;
+
+			liveBytes -= recordSize(position);
+			append(REMOVE, key, 0, new byte[0]);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops all keys that have expired. Their records stay in the file
+	 * until the next compaction; a restore skips them anyway.
+	 *
+	 * @return number of keys dropped
+	 */
+	public int sweep() {
+		lock.writeLock().lock();
+		try {
+			return expiry.sweep(new ExpiryQueue.Expirer<String>() {
+				@Override
+				public boolean expire(String key) {
+					Integer position = index.get(key);
+					if(position == null || expiresAt(position)
+							> System.currentTimeMillis())
+						return false;
+
+					index.remove(key);
+					liveBytes -= recordSize(position);
+					return true;
+				}
+			});
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the file with the live records only, once more than half
+	 * of it is taken by dead ones.
+	 *
+	 * @return true if the file was compacted
+	 */
+	public boolean compactIfNeeded() throws IOException {
+		lock.writeLock().lock();
+		try {
+			long used = writePosition - HEADER_SIZE;
+			if(used < initialSize / 2 || liveBytes * 2 > used)
+				return false;
+
+			compact();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the mapped pages to disk. Without it changes survive a crash
+	 * of the process, but not one of the machine.
+	 */
+	public void force() {
+		lock.readLock().lock();
+		try {
+			buffer.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			buffer.force();
+			channel.close();
+			raf.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public int getFileSize() {
+		lock.readLock().lock();
+		try {
+			return buffer.capacity();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getLiveBytes() {
+		lock.readLock().lock();
+		try {
+			return liveBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void restore() {
+		long now = System.currentTimeMillis();
+		int position = HEADER_SIZE;
+
+		while(position + 4 <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			// compared without overflow, the length may be garbage
+			if(length <= 0 || length > buffer.capacity() - position - 4)
+				break;
+
+			ByteBuffer record = buffer.duplicate();
+			record.position(position + 4);
+			byte type = record.get();
+			long expiresAt = record.getLong();
+			String key = readUTF(record);
+
+			Integer previous = type == PUT && expiresAt > now ?
+					index.put(key, position) : index.remove(key);
+			if(previous != null)
+				liveBytes -= recordSize(previous);
+			if(type == PUT && expiresAt > now) {
+				liveBytes += 4 + length;
+				expiry.schedule(key, expiresAt);
+			}
+
+			position += 4 + length;
+		}
+		writePosition = position;
+
+		LOG.debug("Restored {} records from {}", index.size(), file);
+	}
+
+	private int append(byte type, String key, long expiresAt, byte[] value)
+			throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		if(keyBytes.length > 0xffff)
+			throw new IllegalArgumentException("Key too long");
+
+		int length = 1 + 8 + 2 + keyBytes.length + 4 + value.length;
+		ensureCapacity(writePosition + 4 + length + 4);
+
+		int position = writePosition;
+		ByteBuffer record = buffer.duplicate();
+		record.position(position + 4);
+		record.put(type);
+		record.putLong(expiresAt);
+		record.putShort((short) keyBytes.length);
+		record.put(keyBytes);
+		record.putInt(value.length);
+		record.put(value);
+		// publish the record only once it is complete
+		buffer.putInt(position, length);
+
+		writePosition = position + 4 + length;
+		return position;
+	}
+
+	private void ensureCapacity(long needed) throws IOException {
+		if(needed <= buffer.capacity())
+			return;
+
+		long capacity = buffer.capacity();
+		while(capacity < needed)
+			capacity *= 2;
+		if(capacity > Integer.MAX_VALUE)
+			throw new IOException("Record store is full: " + file);
+
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		LOG.debug("Grew {} to {} bytes", file, capacity);
+	}
+
+	private void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		int before = writePosition;
+
+		File compacted = new File(file.getPath() + ".compact");
+		if(compacted.exists() && !compacted.delete())
+			throw new IOException("Unable to delete " + compacted);
+
+		RandomAccessFile newRaf = new RandomAccessFile(compacted, "rw");
+		FileChannel newChannel = newRaf.getChannel();
+		long capacity = initialSize;
+		while(capacity < HEADER_SIZE + liveBytes * 2)
+			capacity *= 2;
+		MappedByteBuffer newBuffer = newChannel.map(
+				FileChannel.MapMode.READ_WRITE, 0, capacity);
+		newBuffer.putInt(0, MAGIC);
+		newBuffer.putInt(4, VERSION);
+
+		// the index keeps the old positions until the new file is in place
+		Map<String, Integer> moved = new HashMap<String, Integer>();
+		int position = HEADER_SIZE;
+		for(Map.Entry<String, Integer> entry : index.entrySet()) {
+			int size = recordSize(entry.getValue());
+			ByteBuffer record = buffer.duplicate();
+			record.position(entry.getValue());
+			record.limit(entry.getValue() + size);
+
+			ByteBuffer target = newBuffer.duplicate();
+			target.position(position);
+			target.put(record);
+
+			moved.put(entry.getKey(), position);
+			position += size;
+		}
+		newBuffer.force();
+
+		if(!compacted.renameTo(file)) {
+			newChannel.close();
+			newRaf.close();
+			compacted.delete();
+			throw new IOException("Unable to replace " + file);
+		}
+		index.putAll(moved);
+		channel.close();
+		raf.close();
+
+		raf = newRaf;
+		channel = newChannel;
+		buffer = newBuffer;
+		writePosition = position;
+		liveBytes = position - HEADER_SIZE;
+
+		LOG.info("Compacted {} from {} to {} bytes in {} ms", new Object[] {
+				file, before, position, System.currentTimeMillis() - start});
+	}
+
+	private int recordSize(int position) {
+		return 4 + buffer.getInt(position);
+	}
+
+	private long expiresAt(int position) {
+		return buffer.getLong(position + 5);
+	}
+
+	private static String readUTF(ByteBuffer record) {
+		byte[] bytes = new byte[record.getShort() & 0xffff];
+		record.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void skipUTF(ByteBuffer record) {
+		int length = record.getShort() & 0xffff;
+		record.position(record.position() + length);
+	}
+
+}
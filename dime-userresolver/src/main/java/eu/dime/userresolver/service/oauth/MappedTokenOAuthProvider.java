@@ -0,0 +1,271 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.cxf.rs.security.oauth2.common.AccessTokenRegistration;
+import org.apache.cxf.rs.security.oauth2.common.Client;
+import org.apache.cxf.rs.security.oauth2.common.OAuthPermission;
+import org.apache.cxf.rs.security.oauth2.common.ServerAccessToken;
+import org.apache.cxf.rs.security.oauth2.common.UserSubject;
+import org.apache.cxf.rs.security.oauth2.provider.OAuthServiceException;
+import org.apache.cxf.rs.security.oauth2.tokens.bearer.BearerAccessToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps access tokens in a memory-mapped file below the app folder
+ * (oauth.tokens.file), so they survive a restart and do not take up heap.
+ * A token is decoded from the file on every lookup. Clients and code grants
+ * are handled as in {@link MemoryOAuthProvider}.
+ */
+public class MappedTokenOAuthProvider extends MemoryOAuthProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(MappedTokenOAuthProvider.class);
+
+	private static final String PROPERTIES_URI =
+			"/application.properties";
+
+	private static final int INITIAL_FILE_SIZE = 1 << 20;
+
+	private MappedRecordStore store;
+
+	private final AtomicLong expiredAccessTokens = new AtomicLong();
+
+	public MappedTokenOAuthProvider() {
+		Properties properties = new Properties();
+		try {
+			properties.load(
+					MappedTokenOAuthProvider.class.getResourceAsStream(
+							PROPERTIES_URI));
+
+			File appFolder = new File(FilenameUtils.concat(
+					FileUtils.getUserDirectoryPath(),
+					System.getProperty("app.folder",
+							properties.getProperty("app.folder"))));
+			FileUtils.forceMkdir(appFolder);
+
+			File file = new File(appFolder, properties.getProperty(
+					"oauth.tokens.file", "oauth-tokens.dat"));
+
+			long start = System.currentTimeMillis();
+			store = new MappedRecordStore(file, INITIAL_FILE_SIZE);
+			LOG.info("Restored {} access tokens in {} ms",
+					store.size(), System.currentTimeMillis() - start);
+		} catch(IOException e) {
+			LOG.error("Unable to open token store", e);
+			throw new RuntimeException("Unable to open token store", e);
+		}
+	}
+
+	@Override
+	public synchronized void destroy() {
+		super.destroy();
+		try {
+			store.close();
+		} catch(IOException e) {
+			LOG.warn("Unable to close token store", e);
+		}
+	}
+
+	/**
+	 * Also drops expired tokens from the file, compacts it when needed and
+	 * writes it to disk.
+	 */
+	@Override
+	public void sweep() {
+		super.sweep();
+
+		int tokens = store.sweep();
+		expiredAccessTokens.addAndGet(tokens);
+		if(tokens > 0)
+			LOG.debug("Expired {} stored access tokens", tokens);
+
+		try {
+			store.compactIfNeeded();
+		} catch(IOException e) {
+			LOG.warn("Unable to compact token store", e);
+		}
+		store.force();
+	}
+
+	@Override
+	public int getLiveAccessTokens() {
+		return store.size();
+	}
+
+	@Override
+	public long getExpiredAccessTokens() {
+		return expiredAccessTokens.get();
+	}
+
+	public int getTokenFileSize() {
+		return store.getFileSize();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public ServerAccessToken createAccessToken(
+			AccessTokenRegistration tokenRegistration)
+					throws OAuthServiceException {
+
+		ServerAccessToken accessToken = new BearerAccessToken(
+				tokenRegistration.getClient(), ACCESS_TOKEN_LIFETIME);
+
+		List<String> scope = tokenRegistration.getApprovedScope().isEmpty() ?
+				tokenRegistration.getRequestedScope() :
+				tokenRegistration.getApprovedScope();
+
+		accessToken.setScopes(convertScopeToPermissions(
+				tokenRegistration.getClient(), scope));
+		accessToken.setSubject(tokenRegistration.getSubject());
+		accessToken.setGrantType(tokenRegistration.getGrantType());
+
+		try {
+			store.put(accessToken.getTokenKey(),
+					(accessToken.getIssuedAt() + accessToken.getExpiresIn())
+							* 1000, encode(accessToken));
+		} catch(IOException e) {
+			LOG.error("Unable to store access token", e);
+			throw new OAuthServiceException("Unable to store access token", e);
+		}
+
+		return accessToken;
+	}
+
+	@Override
+	public ServerAccessToken getAccessToken(String tokenKey)
+			throws OAuthServiceException {
+		byte[] value = store.get(tokenKey);
+		if(value == null)
+			throw new OAuthServiceException("Unknown access token");
+
+		try {
+			return decode(tokenKey, value);
+		} catch(IOException e) {
+			LOG.error("Unable to read access token", e);
+			throw new OAuthServiceException("Unknown access token", e);
+		}
+	}
+
+	@Override
+	public void removeAccessToken(ServerAccessToken serverAccessToken)
+			throws OAuthServiceException {
+		boolean removed;
+		try {
+			removed = store.remove(serverAccessToken.getTokenKey());
+		} catch(IOException e) {
+			LOG.error("Unable to remove access token", e);
+			throw new OAuthServiceException("Unable to remove access token", e);
+		}
+		if(!removed)
+			throw new OAuthServiceException("Unknown access token");
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private static byte[] encode(ServerAccessToken token) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeUTF(token.getClient().getClientId());
+		out.writeLong(token.getIssuedAt());
+		out.writeLong(token.getExpiresIn());
+		writeNullable(out, token.getGrantType());
+
+		UserSubject subject = token.getSubject();
+		out.writeBoolean(subject != null);
+		if(subject != null) {
+			out.writeUTF(subject.getLogin());
+			writeList(out, subject.getRoles());
+		}
+
+		List<String> scopes = new ArrayList<String>();
+		for(OAuthPermission permission : token.getScopes())
+			scopes.add(permission.getPermission());
+		writeList(out, scopes);
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private ServerAccessToken decode(String tokenKey, byte[] value)
+			throws IOException {
+		DataInputStream in =
+				new DataInputStream(new ByteArrayInputStream(value));
+
+		Client client = getClient(in.readUTF());
+		long issuedAt = in.readLong();
+		long lifetime = in.readLong();
+		String grantType = readNullable(in);
+		UserSubject subject = in.readBoolean() ?
+				new UserSubject(in.readUTF(), readList(in)) : null;
+		List<String> scopes = readList(in);
+
+		ServerAccessToken token = new BearerAccessToken(
+				client, tokenKey, lifetime, issuedAt);
+		token.setScopes(convertScopeToPermissions(client, scopes));
+		token.setSubject(subject);
+		token.setGrantType(grantType);
+		return token;
+	}
+
+	private static void writeNullable(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if(value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeList(DataOutputStream out, List<String> values)
+			throws IOException {
+		if(values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.size());
+		for(String value : values)
+			out.writeUTF(value);
+	}
+
+	private static List<String> readList(DataInputStream in)
+			throws IOException {
+		int size = in.readInt();
+		if(size < 0)
+			return null;
+		List<String> values = new ArrayList<String>(size);
+		for(int i = 0; i < size; i++)
+			values.add(in.readUTF());
+		return values;
+	}
+
+}
@@ -17,8 +17,13 @@ package eu.dime.userresolver.service.oauth;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cxf.rs.security.oauth2.common.AccessTokenRegistration;
 import org.apache.cxf.rs.security.oauth2.common.Client;
@@ -35,60 +40,160 @@ import org.apache.cxf.rs.security.oauth2.utils.OAuthUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.dime.userresolver.service.utils.ExpiringLruCache;
+
 public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 	private static final Logger LOG = 
 			LoggerFactory.getLogger(MemoryOAuthProvider.class);
 	
-	private static Map<String, OAuthPermission> permissions = 
-			new ConcurrentHashMap<String, OAuthPermission>();
+	private static final ScopeTable SCOPES;
 	
 	static {
+		List<OAuthPermission> permissions = new ArrayList<OAuthPermission>();
+		
 		OAuthPermission permission = 
 				new OAuthPermission("search", "Allows searching for users");
 		permission.setHttpVerbs(Arrays.asList("GET"));
 		permission.setUris(Arrays.asList("/*"));
-		permissions.put(permission.getPermission(), permission);
+		permissions.add(permission);
 		
 		permission = 
 				new OAuthPermission(
 						"register", "Allows registration of new users");
 		permission.setHttpVerbs(Arrays.asList("POST", "GET"));
 		permission.setUris(Arrays.asList("/*"));
-		permissions.put(permission.getPermission(), permission);
+		permissions.add(permission);
 		
 		permission = 
 				new OAuthPermission(
 						"delete", "Allows registration of new users");
 		permission.setHttpVerbs(Arrays.asList("DELETE"));
 		permission.setUris(Arrays.asList("/*"));
-		permissions.put(permission.getPermission(), permission);
+		permissions.add(permission);
 		
 		permission = 
 				new OAuthPermission(
 						"update", "Allows registration of new users");
 		permission.setHttpVerbs(Arrays.asList("POST", "GET"));
 		permission.setUris(Arrays.asList("/*"));
-		permissions.put(permission.getPermission(), permission);
+		permissions.add(permission);
+		
+		SCOPES = new ScopeTable(permissions);
 	}
 	
 	////////////////////////////////////////////////////////////////////////////
 	////////////////////////////////////////////////////////////////////////////
 	
-	private Map<String, Client> clients = 
-			new ConcurrentHashMap<String, Client>();
+	protected static final long ACCESS_TOKEN_LIFETIME = 3600l;
+	private static final long CODE_GRANT_LIFETIME = 60l;
+	
+	private volatile ExpiringLruCache<String, Client> clients = 
+			new ExpiringLruCache<String, Client>(10000, 0);
 	
-	private Map<String, ServerAccessToken> accessTokens = 
+	private ConcurrentMap<String, ServerAccessToken> accessTokens = 
 			new ConcurrentHashMap<String, ServerAccessToken>();
 	
-	private Map<String, ServerAuthorizationCodeGrant> authTokens = 
+	private ConcurrentMap<String, ServerAuthorizationCodeGrant> authTokens = 
 			new ConcurrentHashMap<String, ServerAuthorizationCodeGrant>();
 	
+	private ExpiryQueue<String> accessTokenExpiry = new ExpiryQueue<String>();
+	private ExpiryQueue<String> authTokenExpiry = new ExpiryQueue<String>();
+	
+	private final AtomicLong expiredAccessTokens = new AtomicLong();
+	private final AtomicLong expiredCodeGrants = new AtomicLong();
+	
+	private ScheduledExecutorService sweeper;
+	
+	public MemoryOAuthProvider() {
+		setSweepInterval(10);
+	}
+	
+	/**
+	 * Maximum number of known clients; the least recently used client is 
+	 * dropped when a new one exceeds it.
+	 */
+	public void setMaxClients(int maxClients) {
+		clients = new ExpiringLruCache<String, Client>(maxClients, 0);
+	}
+	
+	/**
+	 * Seconds between two runs of the expiry sweeper.
+	 */
+	public synchronized void setSweepInterval(long seconds) {
+		if(sweeper != null)
+			sweeper.shutdownNow();
+		sweeper = newSweeper();
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+	
+	public synchronized void destroy() {
+		sweeper.shutdownNow();
+	}
+	
+	/**
+	 * Removes all access tokens and code grants that have expired.
+	 */
+	public void sweep() {
+		int tokens = accessTokenExpiry.sweep(new ExpiryQueue.Expirer<String>() {
+			@Override
+			public boolean expire(String key) {
+				ServerAccessToken token = accessTokens.get(key);
+				return token != null && isExpired(token) 
+						&& accessTokens.remove(key, token);
+			}
+		});
+		int grants = authTokenExpiry.sweep(new ExpiryQueue.Expirer<String>() {
+			@Override
+			public boolean expire(String code) {
+				ServerAuthorizationCodeGrant grant = authTokens.get(code);
+				return grant != null && isExpired(grant)
+						&& authTokens.remove(code, grant);
+			}
+		});
+		
+		expiredAccessTokens.addAndGet(tokens);
+		expiredCodeGrants.addAndGet(grants);
+		if(tokens > 0 || grants > 0)
+			LOG.debug("Expired {} access tokens and {} code grants", 
+					tokens, grants);
+	}
+	
+	public int getLiveAccessTokens() {
+		return accessTokens.size();
+	}
+	
+	public int getLiveCodeGrants() {
+		return authTokens.size();
+	}
+	
+	public long getExpiredAccessTokens() {
+		return expiredAccessTokens.get();
+	}
+	
+	public long getExpiredCodeGrants() {
+		return expiredCodeGrants.get();
+	}
+	
+	public int getClients() {
+		return clients.size();
+	}
+	
+	public long getEvictedClients() {
+		return clients.getEvictions();
+	}
+	
 	////////////////////////////////////////////////////////////////////////////
 	
 	@Override
 	public Client getClient(String clientId) throws OAuthServiceException {
 		LOG.debug("Request client for id: {}", clientId);
 		
+		ExpiringLruCache<String, Client> clients = this.clients;
 		Client client = clients.get(clientId);
 		if(client != null)
 			return client;
@@ -106,18 +211,18 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 		if(requestedScopes.isEmpty())
 			throw new OAuthServiceException("No scope provided");
 		
-		List<OAuthPermission> permissions = new ArrayList<OAuthPermission>();
-		
-		for(String scope : requestedScopes) {
-			OAuthPermission permission = 
-					MemoryOAuthProvider.permissions.get(scope);
-			if(permission != null)
-				permissions.add(permission);
-			else
-				throw new OAuthServiceException("Unknown scope");
+		try {
+			return SCOPES.permissions(SCOPES.mask(requestedScopes));
+		} catch(IllegalArgumentException e) {
+			throw new OAuthServiceException("Unknown scope");
 		}
-		
-		return permissions;
+	}
+	
+	/**
+	 * Precompiled permissions of all scopes, see {@link ScopeRequestFilter}.
+	 */
+	public ScopeTable getScopeTable() {
+		return SCOPES;
 	}
 	
 	////////////////////////////////////////////////////////////////////////////
@@ -127,8 +232,8 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 			AccessTokenRegistration tokenRegistration)
 					throws OAuthServiceException {
 		
-		ServerAccessToken accessToken = 
-				new BearerAccessToken(tokenRegistration.getClient(), 3600l);
+		ServerAccessToken accessToken = new BearerAccessToken(
+				tokenRegistration.getClient(), ACCESS_TOKEN_LIFETIME);
 		
 		List<String> scope = tokenRegistration.getApprovedScope().isEmpty() ?
 				tokenRegistration.getRequestedScope() :
@@ -140,6 +245,8 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 		accessToken.setGrantType(tokenRegistration.getGrantType());
 		
 		accessTokens.put(accessToken.getTokenKey(), accessToken);
+		accessTokenExpiry.schedule(
+				accessToken.getTokenKey(), expiresAt(accessToken));
 		
 		return accessToken;
 	}
@@ -148,7 +255,7 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 	public ServerAccessToken getAccessToken(String tokenKey)
 			throws OAuthServiceException {
 		ServerAccessToken accessToken = accessTokens.get(tokenKey);
-		if(accessToken != null)
+		if(accessToken != null && !isExpired(accessToken))
 			return accessToken;
 		throw new OAuthServiceException("Unknown access token");
 	}
@@ -188,8 +295,10 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 		
 		ServerAuthorizationCodeGrant codeGrant = 
 				new ServerAuthorizationCodeGrant(
-						authRegistration.getClient(), 60);
+						authRegistration.getClient(), CODE_GRANT_LIFETIME);
 		authTokens.put(codeGrant.getCode(), codeGrant);
+		authTokenExpiry.schedule(codeGrant.getCode(), 
+				(codeGrant.getIssuedAt() + codeGrant.getLifetime()) * 1000);
 		
 		return codeGrant;
 	}
@@ -198,7 +307,35 @@ public class MemoryOAuthProvider implements AuthorizationCodeDataProvider {
 	public ServerAuthorizationCodeGrant removeCodeGrant(String code)
 			throws OAuthServiceException {
 		
-		return authTokens.get(code);
+		ServerAuthorizationCodeGrant codeGrant = authTokens.remove(code);
+		if(codeGrant == null || isExpired(codeGrant))
+			return null;
+		return codeGrant;
+	}
+	
+	////////////////////////////////////////////////////////////////////////////
+	
+	private static long expiresAt(ServerAccessToken token) {
+		return (token.getIssuedAt() + token.getExpiresIn()) * 1000;
+	}
+	
+	private static boolean isExpired(ServerAccessToken token) {
+		return OAuthUtils.isExpired(token.getIssuedAt(), token.getExpiresIn());
+	}
+	
+	private static boolean isExpired(ServerAuthorizationCodeGrant grant) {
+		return OAuthUtils.isExpired(grant.getIssuedAt(), grant.getLifetime());
+	}
+	
+	private static ScheduledExecutorService newSweeper() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "oauth-token-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 
 }
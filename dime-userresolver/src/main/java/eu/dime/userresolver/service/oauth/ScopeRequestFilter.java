@@ -0,0 +1,80 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.apache.cxf.jaxrs.model.ClassResourceInfo;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.rs.security.oauth2.common.AccessTokenValidation;
+import org.apache.cxf.rs.security.oauth2.common.OAuthContext;
+import org.apache.cxf.rs.security.oauth2.common.OAuthPermission;
+import org.apache.cxf.rs.security.oauth2.filters.OAuthRequestFilter;
+import org.apache.cxf.rs.security.oauth2.provider.OAuthDataProvider;
+import org.apache.cxf.security.SecurityContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link OAuthRequestFilter} deciding on the token's permissions with the
+ * {@link ScopeTable} of a {@link MemoryOAuthProvider} instead of matching
+ * every permission's verbs and URI templates per request. Falls back to
+ * the default checks for other data providers.
+ */
+public class ScopeRequestFilter extends OAuthRequestFilter {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ScopeRequestFilter.class);
+
+	private ScopeTable scopeTable;
+
+	@Override
+	public void setDataProvider(OAuthDataProvider dataProvider) {
+		super.setDataProvider(dataProvider);
+		scopeTable = dataProvider instanceof MemoryOAuthProvider ?
+				((MemoryOAuthProvider) dataProvider).getScopeTable() : null;
+	}
+
+	@Override
+	public Response handleRequest(Message m, ClassResourceInfo resourceClass) {
+		if(scopeTable == null)
+			return super.handleRequest(m, resourceClass);
+
+		AccessTokenValidation accessTokenV = getAccessTokenValidation();
+
+		HttpServletRequest req = getMessageContext().getHttpServletRequest();
+		List<OAuthPermission> permissions = accessTokenV.getTokenScopes();
+
+		int allowed = scopeTable.allowed(
+				scopeTable.permissionMask(permissions),
+				req.getMethod(), req.getPathInfo());
+		if(allowed == 0 && !permissions.isEmpty()) {
+			LOG.warn("Client has no valid permissions");
+			throw new WebApplicationException(403);
+		}
+
+		SecurityContext sc = createSecurityContext(req, accessTokenV);
+		m.put(SecurityContext.class, sc);
+		m.setContent(OAuthContext.class, new OAuthContext(
+				accessTokenV.getTokenSubject(),
+				scopeTable.permissions(allowed),
+				accessTokenV.getTokenGrantType()));
+		return null;
+	}
+
+}
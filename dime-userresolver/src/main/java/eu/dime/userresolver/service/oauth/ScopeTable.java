@@ -0,0 +1,216 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.cxf.rs.security.oauth2.common.OAuthPermission;
+import org.apache.cxf.rs.security.oauth2.utils.OAuthUtils;
+
+/**
+ * Precompiled form of a fixed set of {@link OAuthPermission}s. Every scope
+ * is a bit; a set of scopes is an int mask. For each HTTP verb the mask of
+ * scopes allowing it is computed up front, as is the mask of scopes whose
+ * URIs match every path ("/*"). Deciding which of a token's scopes allow a
+ * request is then a few bit operations.
+ *
+ * Permission lists handed out are shared and unmodifiable, one per mask,
+ * and carry their mask so it does not have to be computed again.
+ */
+public class ScopeTable {
+
+	/** at most 2^16 masks, each with a lazily built permission list */
+	private static final int MAX_SCOPES = 16;
+
+	/**
+	 * Unmodifiable list of the permissions of a scope mask.
+	 */
+	static final class ScopeList extends AbstractList<OAuthPermission> {
+		final int mask;
+		private final OAuthPermission[] permissions;
+
+		ScopeList(int mask, OAuthPermission[] permissions) {
+			this.mask = mask;
+			this.permissions = permissions;
+		}
+
+		@Override
+		public OAuthPermission get(int index) {
+			return permissions[index];
+		}
+
+		@Override
+		public int size() {
+			return permissions.length;
+		}
+	}
+
+	private final OAuthPermission[] scopes;
+	private final Map<String, Integer> bitsByName =
+			new HashMap<String, Integer>();
+	private final Map<OAuthPermission, Integer> bitsByPermission =
+			new IdentityHashMap<OAuthPermission, Integer>();
+
+	/** verb -> mask of the scopes allowing it */
+	private final Map<String, Integer> verbMasks =
+			new HashMap<String, Integer>();
+	/** scopes without verb restriction */
+	private final int anyVerbMask;
+
+	/** scopes allowing every path */
+	private final int anyUriMask;
+	/** URI patterns of the other scopes, by bit */
+	private final List<List<String>> uris = new ArrayList<List<String>>();
+
+	private final AtomicReferenceArray<ScopeList> lists;
+
+	public ScopeTable(List<OAuthPermission> permissions) {
+		if(permissions.size() > MAX_SCOPES)
+			throw new IllegalArgumentException(
+					"At most " + MAX_SCOPES + " scopes are supported");
+
+		scopes = permissions.toArray(new OAuthPermission[permissions.size()]);
+
+		int anyVerb = 0;
+		int anyUri = 0;
+		for(int bit = 0; bit < scopes.length; bit++) {
+			OAuthPermission permission = scopes[bit];
+			int mask = 1 << bit;
+
+			if(bitsByName.put(permission.getPermission(), bit) != null)
+				throw new IllegalArgumentException(
+						"Duplicate scope " + permission.getPermission());
+			bitsByPermission.put(permission, bit);
+
+			if(permission.getHttpVerbs().isEmpty())
+				anyVerb |= mask;
+			for(String verb : permission.getHttpVerbs()) {
+				Integer verbMask = verbMasks.get(verb);
+				verbMasks.put(verb, (verbMask == null ? 0 : verbMask) | mask);
+			}
+
+			List<String> patterns = new ArrayList<String>();
+			for(String uri : permission.getUris()) {
+				if("/*".equals(uri) || "*".equals(uri))
+					patterns = null;
+				if(patterns == null)
+					break;
+				patterns.add(uri);
+			}
+			if(patterns == null || permission.getUris().isEmpty())
+				anyUri |= mask;
+			uris.add(patterns);
+		}
+		anyVerbMask = anyVerb;
+		anyUriMask = anyUri;
+
+		lists = new AtomicReferenceArray<ScopeList>(1 << scopes.length);
+	}
+
+	/**
+	 * @return mask of the given scope names
+	 * @throws IllegalArgumentException if a scope is unknown
+	 */
+	public int mask(List<String> scopeNames) {
+		int mask = 0;
+		for(int i = 0; i < scopeNames.size(); i++) {
+			Integer bit = bitsByName.get(scopeNames.get(i));
+			if(bit == null)
+				throw new IllegalArgumentException(
+						"Unknown scope " + scopeNames.get(i));
+			mask |= 1 << bit;
+		}
+		return mask;
+	}
+
+	/**
+	 * @return mask of the given permissions; permissions that are not part
+	 * 		of this table are ignored
+	 */
+	public int permissionMask(List<OAuthPermission> permissions) {
+		if(permissions instanceof ScopeList)
+			return ((ScopeList) permissions).mask;
+
+		int mask = 0;
+		for(int i = 0; i < permissions.size(); i++) {
+			Integer bit = bitsByPermission.get(permissions.get(i));
+			if(bit != null)
+				mask |= 1 << bit;
+		}
+		return mask;
+	}
+
+	/**
+	 * @return the scopes of <code>granted</code> which allow the request
+	 */
+	public int allowed(int granted, String verb, String path) {
+		Integer verbMask = verbMasks.get(verb);
+		int allowed = granted
+				& (anyVerbMask | (verbMask == null ? 0 : verbMask));
+
+		int pending = allowed & ~anyUriMask;
+		while(pending != 0) {
+			int bit = Integer.numberOfTrailingZeros(pending);
+			pending &= pending - 1;
+			if(!matches(uris.get(bit), path == null ? "/" : path))
+				allowed &= ~(1 << bit);
+		}
+		return allowed;
+	}
+
+	/**
+	 * @return shared unmodifiable list of the permissions in the mask
+	 */
+	public List<OAuthPermission> permissions(int mask) {
+		ScopeList list = lists.get(mask);
+		if(list != null)
+			return list;
+
+		OAuthPermission[] permissions =
+				new OAuthPermission[Integer.bitCount(mask)];
+		int i = 0;
+		for(int bit = 0; bit < scopes.length; bit++) {
+			if((mask & (1 << bit)) != 0)
+				permissions[i++] = scopes[bit];
+		}
+		lists.compareAndSet(mask, null, new ScopeList(mask, permissions));
+		return lists.get(mask);
+	}
+
+	public List<OAuthPermission> getScopes() {
+		return permissions((1 << scopes.length) - 1);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	/*
+	 * Only reached for scopes restricted to specific URIs; those keep the
+	 * template matching of CXF.
+	 */
+	private static boolean matches(List<String> patterns, String path) {
+		for(int i = 0; i < patterns.size(); i++) {
+			if(OAuthUtils.checkRequestURI(path, patterns.get(i)))
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.cxf.rs.security.oauth2.common.AccessTokenRegistration;
+import org.apache.cxf.rs.security.oauth2.common.Client;
+import org.apache.cxf.rs.security.oauth2.common.ServerAccessToken;
+import org.apache.cxf.rs.security.oauth2.common.UserSubject;
+import org.apache.cxf.rs.security.oauth2.provider.OAuthServiceException;
+import org.apache.cxf.rs.security.oauth2.tokens.bearer.BearerAccessToken;
+import org.apache.cxf.rs.security.oauth2.utils.OAuthUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Issues self-contained bearer tokens: the client, subject, scopes and
+ * lifetime are encoded in the token and protected by an HMAC-SHA256
+ * signature. Every node configured with the same secret validates a token
+ * with a local signature check, so no token state has to be shared.
+ *
+ * Token format: base64url(json payload) "." base64url(signature)
+ *
+ * Clients and code grants are handled as in {@link MemoryOAuthProvider}.
+ * Removing a token only revokes it on the node that removed it.
+ */
+public class SignedTokenOAuthProvider extends MemoryOAuthProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SignedTokenOAuthProvider.class);
+
+	private static final String PROPERTIES_URI =
+			"/application.properties";
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private SecretKeySpec key;
+
+	/** token key -> expiry in epoch milliseconds */
+	private ConcurrentMap<String, Long> revoked =
+			new ConcurrentHashMap<String, Long>();
+
+	private ExpiryQueue<String> revokedExpiry = new ExpiryQueue<String>();
+
+	public SignedTokenOAuthProvider() {
+		Properties properties = new Properties();
+		try {
+			properties.load(
+					SignedTokenOAuthProvider.class.getResourceAsStream(
+							PROPERTIES_URI));
+		} catch(IOException e) {
+			throw new RuntimeException("Unable to load properties", e);
+		}
+
+		String secret = properties.getProperty("oauth.token.secret", "");
+		if(secret.length() == 0) {
+			LOG.warn("No oauth.token.secret configured, tokens are only "
+					+ "valid on this node until it restarts");
+			secret = RandomStringUtils.randomAlphanumeric(32);
+		}
+		setSecret(secret);
+	}
+
+	/**
+	 * Shared signing secret; overrides oauth.token.secret.
+	 */
+	public void setSecret(String secret) {
+		try {
+			key = new SecretKeySpec(secret.getBytes("UTF-8"), ALGORITHM);
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public ServerAccessToken createAccessToken(
+			AccessTokenRegistration tokenRegistration)
+					throws OAuthServiceException {
+
+		List<String> scope = tokenRegistration.getApprovedScope().isEmpty() ?
+				tokenRegistration.getRequestedScope() :
+				tokenRegistration.getApprovedScope();
+
+		Client client = tokenRegistration.getClient();
+		UserSubject subject = tokenRegistration.getSubject();
+		long issuedAt = System.currentTimeMillis() / 1000;
+
+		Map<String, Object> payload = new LinkedHashMap<String, Object>();
+		payload.put("c", client.getClientId());
+		if(subject != null) {
+			payload.put("s", subject.getLogin());
+			payload.put("r", subject.getRoles());
+		}
+		payload.put("p", scope);
+		payload.put("g", tokenRegistration.getGrantType());
+		payload.put("i", issuedAt);
+		payload.put("l", ACCESS_TOKEN_LIFETIME);
+		// makes tokens issued within the same second distinct
+		payload.put("n", RandomStringUtils.randomAlphanumeric(8));
+
+		String tokenKey;
+		try {
+			String encoded = Base64.encodeBase64URLSafeString(
+					MAPPER.writeValueAsBytes(payload));
+			tokenKey = encoded + "." + sign(encoded);
+		} catch(IOException e) {
+			throw new OAuthServiceException("Unable to encode token", e);
+		}
+
+		ServerAccessToken accessToken = new BearerAccessToken(
+				client, tokenKey, ACCESS_TOKEN_LIFETIME, issuedAt);
+		accessToken.setScopes(convertScopeToPermissions(client, scope));
+		accessToken.setSubject(subject);
+		accessToken.setGrantType(tokenRegistration.getGrantType());
+
+		return accessToken;
+	}
+
+	@Override
+	public ServerAccessToken getAccessToken(String tokenKey)
+			throws OAuthServiceException {
+		int dot = tokenKey == null ? -1 : tokenKey.indexOf('.');
+		if(dot < 0)
+			throw new OAuthServiceException("Unknown access token");
+
+		String encoded = tokenKey.substring(0, dot);
+		byte[] signature = Base64.decodeBase64(tokenKey.substring(dot + 1));
+		if(!MessageDigest.isEqual(signature, mac(encoded)))
+			throw new OAuthServiceException("Invalid access token signature");
+
+		Map<String, Object> payload;
+		try {
+			payload = MAPPER.readValue(Base64.decodeBase64(encoded),
+					new TypeReference<Map<String, Object>>() {});
+		} catch(IOException e) {
+			throw new OAuthServiceException("Invalid access token", e);
+		}
+
+		long issuedAt = ((Number) payload.get("i")).longValue();
+		long lifetime = ((Number) payload.get("l")).longValue();
+		if(OAuthUtils.isExpired(issuedAt, lifetime)
+				|| revoked.containsKey(tokenKey))
+			throw new OAuthServiceException("Unknown access token");
+
+		@SuppressWarnings("unchecked")
+		List<String> scope = (List<String>) payload.get("p");
+		Client client = getClient((String) payload.get("c"));
+
+		ServerAccessToken accessToken = new BearerAccessToken(
+				client, tokenKey, lifetime, issuedAt);
+		accessToken.setScopes(convertScopeToPermissions(client, scope));
+		if(payload.containsKey("s")) {
+			@SuppressWarnings("unchecked")
+			List<String> roles = (List<String>) payload.get("r");
+			accessToken.setSubject(
+					new UserSubject((String) payload.get("s"), roles));
+		}
+		accessToken.setGrantType((String) payload.get("g"));
+
+		return accessToken;
+	}
+
+	/**
+	 * Revokes the token on this node until it expires.
+	 */
+	@Override
+	public void removeAccessToken(ServerAccessToken serverAccessToken)
+			throws OAuthServiceException {
+		long expiresAt = (serverAccessToken.getIssuedAt()
+				+ serverAccessToken.getExpiresIn()) * 1000;
+		if(revoked.putIfAbsent(serverAccessToken.getTokenKey(), expiresAt)
+				== null) {
+			revokedExpiry.schedule(serverAccessToken.getTokenKey(), expiresAt);
+		}
+	}
+
+	@Override
+	public void sweep() {
+		super.sweep();
+		revokedExpiry.sweep(new ExpiryQueue.Expirer<String>() {
+			@Override
+			public boolean expire(String tokenKey) {
+				return revoked.remove(tokenKey) != null;
+			}
+		});
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private String sign(String encoded) {
+		return Base64.encodeBase64URLSafeString(mac(encoded));
+	}
+
+	private byte[] mac(String encoded) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac.doFinal(encoded.getBytes("US-ASCII"));
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to sign token", e);
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to sign token", e);
+		}
+	}
+
+}
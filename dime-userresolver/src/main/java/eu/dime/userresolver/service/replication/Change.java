@@ -0,0 +1,69 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.replication;
+
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+import eu.dime.userresolver.service.user.User;
+
+/**
+ * One registration, update or removal in the {@link ChangeLog}, as sent to
+ * the replicas. Unlike the search results it carries the id, which keeps
+ * the cursors of the replicas valid on the primary and vice versa, and the
+ * key hash, which the replicas need to authenticate requests.
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+public class Change {
+
+	public static final String REGISTERED = "registered";
+	public static final String UPDATED = "updated";
+	public static final String REMOVED = "removed";
+
+	public long seq;
+	public String type;
+
+	public int id;
+	public String said;
+	public String name;
+	public String surname;
+	public String nickname;
+	public String key;
+
+	public Change() {}
+
+	/**
+	 * A removal only keeps the id and said of the user.
+	 */
+	public Change(long seq, String type, User user) {
+		this.seq = seq;
+		this.type = type;
+		this.id = user.getId();
+		this.said = user.getSaid();
+		if(!REMOVED.equals(type)) {
+			this.name = user.getName();
+			this.surname = user.getSurname();
+			this.nickname = user.getNickname();
+			this.key = user.getKey();
+		}
+	}
+
+	public User toUser() {
+		User user = new User(said, name, surname, nickname);
+		user.setId(id);
+		user.setKey(key);
+		return user;
+	}
+
+}
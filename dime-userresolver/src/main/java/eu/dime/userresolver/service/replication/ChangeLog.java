@@ -0,0 +1,123 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.replication;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserListener;
+import eu.dime.userresolver.service.user.UserProvider;
+
+/**
+ * Numbers the registrations, updates and removals seen by the
+ * {@link UserProvider} with a gapless sequence and keeps the most recent
+ * ones in a ring, so replicas can fetch what they missed. A replica that
+ * falls further behind than the ring reaches has to take a new snapshot.
+ *
+ * The sequence starts over at every restart; the startup time is sent along
+ * as epoch, so replicas notice. Events have to be fired in the order of the
+ * writes, as {@link eu.dime.userresolver.service.user.OrmLiteUserProvider}
+ * does under its write lock.
+ */
+public class ChangeLog implements UserListener {
+
+	private final long epoch = System.currentTimeMillis();
+
+	private Change[] changes = new Change[100000];
+
+	/** sequence number of the last change, 0 before the first one */
+	private long last;
+
+	public void setUserProvider(UserProvider userProvider) {
+		userProvider.addListener(this);
+	}
+
+	/**
+	 * Number of changes kept for replicas catching up.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		Change[] resized = new Change[capacity];
+		for(long seq = Math.max(1, last - capacity + 1); seq <= last; seq++)
+			resized[(int) (seq % capacity)] = get(seq);
+		changes = resized;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public synchronized long getLast() {
+		return last;
+	}
+
+	/**
+	 * Returns the changes after <code>seq</code>. If there are none yet,
+	 * waits up to <code>waitMillis</code> for the next one.
+	 *
+	 * @return up to <code>limit</code> changes in sequence order, empty if
+	 * 		nothing changed in time
+	 * @throws IllegalArgumentException if the changes after the sequence
+	 * 		number are no longer kept, or it was never handed out
+	 */
+	public synchronized List<Change> since(long seq, int limit,
+			long waitMillis) throws InterruptedException {
+		if(seq < 0 || seq > last)
+			throw new IllegalArgumentException("Unknown sequence number " + seq);
+
+		long deadline = System.currentTimeMillis() + waitMillis;
+		long remaining = waitMillis;
+		while(seq == last && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+
+		if(seq < last - changes.length)
+			throw new IllegalArgumentException(
+					"Changes after " + seq + " are no longer kept");
+
+		long to = Math.min(last, seq + limit);
+		List<Change> result = new ArrayList<Change>((int) (to - seq));
+		for(long next = seq + 1; next <= to; next++)
+			result.add(get(next));
+		return result;
+	}
+
+	@Override
+	public void registered(User user) {
+		append(Change.REGISTERED, user);
+	}
+
+	@Override
+	public void updated(User user) {
+		append(Change.UPDATED, user);
+	}
+
+	@Override
+	public void removed(User user) {
+		append(Change.REMOVED, user);
+	}
+
+	private synchronized void append(String type, User user) {
+		last++;
+		changes[(int) (last % changes.length)] = new Change(last, type, user);
+		notifyAll();
+	}
+
+	private Change get(long seq) {
+		return changes[(int) (seq % changes.length)];
+	}
+
+}
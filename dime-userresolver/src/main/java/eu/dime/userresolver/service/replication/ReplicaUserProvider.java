@@ -0,0 +1,332 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.replication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.dime.userresolver.client.utils.HttpUtils;
+import eu.dime.userresolver.service.user.MemoryUserProvider;
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserVisitor;
+
+/**
+ * Read-only {@link MemoryUserProvider} following the {@link ChangeLog} of a
+ * primary through its {@link ReplicationService}. It starts from a
+ * snapshot and then long-polls for changes, so it is behind the primary
+ * by about one round trip. Registrations, updates and removals have to be
+ * sent to the primary and fail here.
+ *
+ * When the primary restarts or the replica falls behind further than the
+ * primary keeps changes, a new snapshot is taken; users missing from it
+ * are removed. Until the first snapshot succeeds the replica is empty.
+ *
+ * Requests to the primary carry the credential of the properties
+ * replication.user and replication.password of /application.properties,
+ * which have to match those of the primary.
+ */
+public class ReplicaUserProvider extends MemoryUserProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ReplicaUserProvider.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String PROPERTIES_URI =
+			"/application.properties";
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private String primaryEndpoint;
+	private String authorization;
+	private int pollWait = 25;
+	private int retryInterval = 5;
+
+	private DefaultHttpClient httpClient;
+	private Thread follower;
+
+	/** 0 until the first snapshot */
+	private volatile long epoch;
+	private volatile long last;
+	private volatile long lastContact;
+
+	/**
+	 * Address of the primary's {@link ReplicationService}, e.g.
+	 * http://primary:8080/user-resolver/api/replication
+	 */
+	public void setPrimaryEndpoint(String primaryEndpoint) {
+		this.primaryEndpoint = primaryEndpoint;
+	}
+
+	/**
+	 * Seconds a poll is held by the primary when nothing changes.
+	 */
+	public void setPollWait(int pollWait) {
+		this.pollWait = pollWait;
+	}
+
+	/**
+	 * Seconds between two attempts while the primary cannot be reached.
+	 */
+	public void setRetryInterval(int retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Takes the first snapshot and starts following the primary.
+	 */
+	public synchronized void start() {
+		Properties properties = new Properties();
+		try {
+			properties.load(ReplicaUserProvider.class.getResourceAsStream(
+					PROPERTIES_URI));
+		} catch(IOException e) {
+			throw new RuntimeException("Unable to load properties", e);
+		}
+		String credential = properties.getProperty("replication.user", "")
+				+ ":" + properties.getProperty("replication.password", "");
+		authorization = "Basic " + new String(
+				Base64.encodeBase64(credential.getBytes(UTF8)), UTF8);
+
+		httpClient = HttpUtils.createHttpClient();
+		HttpConnectionParams.setSoTimeout(
+				httpClient.getParams(), (pollWait + 30) * 1000);
+
+		try {
+			bootstrap();
+		} catch(IOException e) {
+			LOG.error("Unable to take snapshot of " + primaryEndpoint
+					+ ", retrying in the background", e);
+		}
+
+		follower = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				follow();
+			}
+		}, "user-replica-follower");
+		follower.setDaemon(true);
+		follower.start();
+	}
+
+	public synchronized void stop() {
+		if(follower != null)
+			follower.interrupt();
+		// aborts a running poll
+		if(httpClient != null)
+			httpClient.getConnectionManager().shutdown();
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return sequence number of the last change applied
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @return time of the last successful request to the primary
+	 */
+	public long getLastContact() {
+		return lastContact;
+	}
+
+	@Override
+	public User register(User user) {
+		throw readOnly();
+	}
+
+	@Override
+	public List<String> registerAll(List<User> users) {
+		throw readOnly();
+	}
+
+	@Override
+	public User update(String said, String name, String surname,
+			String nickname) {
+		throw readOnly();
+	}
+
+	@Override
+	public User remove(String said) {
+		throw readOnly();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private static IllegalStateException readOnly() {
+		return new IllegalStateException(
+				"Read-only replica, send changes to the primary");
+	}
+
+	private void follow() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				if(epoch == 0 || !poll())
+					bootstrap();
+			} catch(IOException e) {
+				if(Thread.currentThread().isInterrupted())
+					break;
+				LOG.warn("Unable to follow " + primaryEndpoint + ", retrying in "
+						+ retryInterval + " s", e);
+				try {
+					Thread.sleep(retryInterval * 1000L);
+				} catch(InterruptedException ie) {
+					break;
+				}
+			}
+		}
+		LOG.info("Stopped following {}", primaryEndpoint);
+	}
+
+	/**
+	 * Applies the next changes of the primary.
+	 *
+	 * @return false if a new snapshot is needed
+	 */
+	private boolean poll() throws IOException {
+		HttpGet get = new HttpGet(primaryEndpoint + "/changes?since=" + last
+				+ "&epoch=" + epoch + "&wait=" + pollWait);
+		get.setHeader("Authorization", authorization);
+		HttpResponse response = httpClient.execute(get);
+		HttpEntity entity = response.getEntity();
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			if(status == HttpStatus.SC_GONE) {
+				LOG.info("Changes after {} no longer available, taking a new "
+						+ "snapshot", last);
+				return false;
+			}
+			if(status != HttpStatus.SC_OK)
+				throw new IOException("Unexpected status " + status);
+
+			read(entity.getContent(), null);
+			lastContact = System.currentTimeMillis();
+			return true;
+		} finally {
+			EntityUtils.consume(entity);
+		}
+	}
+
+	/**
+	 * Loads a snapshot over the users held so far.
+	 */
+	private void bootstrap() throws IOException {
+		long start = System.currentTimeMillis();
+
+		HttpGet get = new HttpGet(primaryEndpoint + "/snapshot");
+		get.setHeader("Authorization", authorization);
+		HttpResponse response = httpClient.execute(get);
+		HttpEntity entity = response.getEntity();
+		Set<String> saids = new HashSet<String>();
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			if(status != HttpStatus.SC_OK)
+				throw new IOException("Unexpected status " + status);
+
+			read(entity.getContent(), saids);
+		} finally {
+			EntityUtils.consume(entity);
+		}
+
+		// users removed while the replica did not follow
+		final List<String> stale = new ArrayList<String>();
+		visitAll(new UserVisitor() {
+			@Override
+			public void visit(User user) {
+				stale.add(user.getSaid());
+			}
+		});
+		stale.removeAll(saids);
+		for(String said : stale)
+			discard(said);
+
+		lastContact = System.currentTimeMillis();
+		LOG.info("Loaded snapshot of {} users at change {} in {} ms",
+				new Object[] { saids.size(), last,
+						System.currentTimeMillis() - start });
+	}
+
+	/**
+	 * Applies the changes of a snapshot or poll response while they are
+	 * parsed, and takes over its epoch and last sequence number.
+	 *
+	 * @param saids collects the saids of the users, null to skip
+	 */
+	private void read(InputStream body, Set<String> saids) throws IOException {
+		JsonParser parser = MAPPER.getJsonFactory().createJsonParser(body);
+		try {
+			if(parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Expected response object");
+
+			long responseEpoch = 0;
+			long responseLast = 0;
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if("epoch".equals(field)) {
+					responseEpoch = parser.getLongValue();
+				} else if("last".equals(field)) {
+					responseLast = parser.getLongValue();
+				} else if("result".equals(field)) {
+					while(parser.nextToken() == JsonToken.START_OBJECT) {
+						Change change = MAPPER.readValue(parser, Change.class);
+						apply(change);
+						if(saids != null)
+							saids.add(change.said);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			epoch = responseEpoch;
+			last = responseLast;
+		} finally {
+			parser.close();
+		}
+	}
+
+	private void apply(Change change) {
+		if(Change.REMOVED.equals(change.type))
+			discard(change.said);
+		else
+			replace(change.toUser());
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.replication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.dime.userresolver.service.user.User;
+import eu.dime.userresolver.service.user.UserProvider;
+import eu.dime.userresolver.service.user.UserVisitor;
+
+/**
+ * Feed of the {@link ChangeLog} for read replicas, see
+ * {@link ReplicaUserProvider}. It hands out the key hashes of all users, so
+ * its server is protected by the shared credential of the replicas, see
+ * {@link eu.dime.userresolver.service.basicauth.SharedCredentialInterceptor}.
+ */
+@Path("/")
+public class ReplicationService {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ReplicationService.class);
+
+	private class ChangesResponse {
+		@SuppressWarnings("unused")
+		public String version = apiVersion;
+		@SuppressWarnings("unused")
+		public long epoch;
+		@SuppressWarnings("unused")
+		public long last;
+		@SuppressWarnings("unused")
+		public List<Change> result;
+	}
+
+	private class ErrorResponse {
+		@SuppressWarnings("unused")
+		public String version = apiVersion;
+
+		@SuppressWarnings("unused")
+		public String error;
+
+		public ErrorResponse(String error) {
+			this.error = error;
+		}
+	}
+
+	private static final String apiVersion = "0.1";
+
+	private static final int DEFAULT_LIMIT = 1000;
+	private static final int MAX_LIMIT = 10000;
+
+	/** below the usual proxy and client timeouts */
+	private static final int MAX_WAIT = 30;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private UserProvider userProvider;
+	private ChangeLog changeLog;
+
+	public void setUserProvider(UserProvider userProvider) {
+		this.userProvider = userProvider;
+	}
+
+	public void setChangeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	/**
+	 * http://[url]/snapshot
+	 *
+	 * The whole registry as "registered" changes, streamed like /export.
+	 * Changes made while it is written may or may not be part of it; a
+	 * replica gets them again from /changes after "last", which is written
+	 * before the users.
+	 *
+	 * {
+	 *	version: "0.1",
+	 *	epoch: EPOCH,
+	 *	last: SEQ,
+	 *	result: [
+	 *		{ seq: SEQ, type: "registered", id: ID, said: "SAID", ... },
+	 *	...
+	 *	]
+	 * }
+	 */
+	@GET
+	@Path("/snapshot")
+	@Produces ("application/json")
+	public Response snapshot() {
+		final long last = changeLog.getLast();
+
+		StreamingOutput stream = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output)
+					throws IOException, WebApplicationException {
+				final JsonGenerator generator = MAPPER.getJsonFactory()
+						.createJsonGenerator(output, JsonEncoding.UTF8);
+
+				generator.writeStartObject();
+				generator.writeStringField("version", apiVersion);
+				generator.writeNumberField("epoch", changeLog.getEpoch());
+				generator.writeNumberField("last", last);
+				generator.writeArrayFieldStart("result");
+
+				userProvider.visitAll(new UserVisitor() {
+					@Override
+					public void visit(User user) throws IOException {
+						MAPPER.writeValue(generator,
+								new Change(last, Change.REGISTERED, user));
+					}
+				});
+
+				generator.writeEndArray();
+				generator.writeEndObject();
+				generator.close();
+			}
+		};
+
+		LOG.info("Snapshot requested at change {}", last);
+		return Response.ok(stream).build();
+	}
+
+	/**
+	 * http://[url]/changes?since=[seq]&epoch=[epoch]&wait=[seconds]
+	 * 	&limit=[limit]
+	 *
+	 * The changes after the sequence number, in the response format of
+	 * /snapshot. Without any, the request is held for up to wait seconds
+	 * (at most 30) and answered as soon as one is made. 410 Gone tells the
+	 * replica to take a new snapshot: the epoch is not the current one, or
+	 * the changes are no longer kept.
+	 */
+	@GET
+	@Path("/changes")
+	@Produces ("application/json")
+	public Response changes(
+			@QueryParam("since") Long since,
+			@QueryParam("epoch") Long epoch,
+			@QueryParam("wait") Integer wait,
+			@QueryParam("limit") Integer limit) {
+
+		if(since == null)
+			return Response.ok(
+					new ErrorResponse("Missing since")).status(400).build();
+		if(since < 0)
+			return Response.ok(
+					new ErrorResponse("Negative since")).status(400).build();
+
+		if(epoch != null && epoch != changeLog.getEpoch())
+			return Response.ok(new ErrorResponse("Epoch " + epoch
+					+ " has ended")).status(Response.Status.GONE).build();
+
+		int max = limit == null ? DEFAULT_LIMIT :
+			Math.max(1, Math.min(limit, MAX_LIMIT));
+		long waitMillis = wait == null ? 0 :
+			Math.max(0, Math.min(wait, MAX_WAIT)) * 1000L;
+
+		ChangesResponse response = new ChangesResponse();
+		response.epoch = changeLog.getEpoch();
+		try {
+			response.result = changeLog.since(since, max, waitMillis);
+		} catch(IllegalArgumentException e) {
+			return Response.ok(new ErrorResponse(e.getMessage())).status(
+					Response.Status.GONE).build();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Response.ok(new ErrorResponse("Interrupted")).status(
+					Response.Status.SERVICE_UNAVAILABLE).build();
+		}
+		response.last = response.result.isEmpty() ? since
+				: response.result.get(response.result.size() - 1).seq;
+
+		return Response.ok(response).build();
+	}
+
+}
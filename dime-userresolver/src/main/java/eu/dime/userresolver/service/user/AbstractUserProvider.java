@@ -0,0 +1,68 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listener bookkeeping shared by the storing {@link UserProvider}s.
+ */
+public abstract class AbstractUserProvider implements UserProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AbstractUserProvider.class);
+
+	private List<UserListener> listeners =
+			new CopyOnWriteArrayList<UserListener>();
+
+	@Override
+	public void addListener(UserListener listener) {
+		listeners.add(listener);
+	}
+
+	protected void fireRegistered(User user) {
+		for(UserListener listener : listeners) {
+			try {
+				listener.registered(user);
+			} catch(RuntimeException e) {
+				LOG.error("User listener failed on register", e);
+			}
+		}
+	}
+
+	protected void fireUpdated(User user) {
+		for(UserListener listener : listeners) {
+			try {
+				listener.updated(user);
+			} catch(RuntimeException e) {
+				LOG.error("User listener failed on update", e);
+			}
+		}
+	}
+
+	protected void fireRemoved(User user) {
+		for(UserListener listener : listeners) {
+			try {
+				listener.removed(user);
+			} catch(RuntimeException e) {
+				LOG.error("User listener failed on remove", e);
+			}
+		}
+	}
+
+}
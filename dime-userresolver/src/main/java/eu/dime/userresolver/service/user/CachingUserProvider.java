@@ -0,0 +1,384 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.dime.userresolver.service.utils.ExpiringLruCache;
+
+/**
+ * Read-through cache in front of another {@link UserProvider}. Users are
+ * cached by said, search results by their parameters. Every change seen by
+ * the delegate, whichever way it was made, drops the affected user and all
+ * cached search results.
+ */
+public class CachingUserProvider implements UserProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(CachingUserProvider.class);
+
+	private static final int WARM_UP_PAGE = 1000;
+
+	private UserProvider delegate;
+
+	private volatile ExpiringLruCache<String, User> users =
+			new ExpiringLruCache<String, User>(10000, 600000);
+	private volatile ExpiringLruCache<String, Object> searches =
+			new ExpiringLruCache<String, Object>(1000, 5000);
+
+	/** bumped on every change so loads started before it are not cached */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	private int warmUpSize = 0;
+
+	public void setDelegate(UserProvider delegate) {
+		this.delegate = delegate;
+		this.delegate.addListener(new UserListener() {
+			@Override
+			public void registered(User user) {
+				invalidate(user);
+			}
+
+			@Override
+			public void updated(User user) {
+				invalidate(user);
+			}
+
+			@Override
+			public void removed(User user) {
+				invalidate(user);
+			}
+		});
+	}
+
+	public void setUserCacheSize(int size) {
+		users = new ExpiringLruCache<String, User>(size, users.getTtlMillis());
+	}
+
+	public void setUserCacheTtl(long seconds) {
+		users = new ExpiringLruCache<String, User>(
+				users.getMaxSize(), seconds * 1000);
+	}
+
+	public void setSearchCacheSize(int size) {
+		searches = new ExpiringLruCache<String, Object>(
+				size, searches.getTtlMillis());
+	}
+
+	public void setSearchCacheTtl(long seconds) {
+		searches = new ExpiringLruCache<String, Object>(
+				searches.getMaxSize(), seconds * 1000);
+	}
+
+	/**
+	 * Number of users loaded into the cache by {@link #warmUp()}.
+	 */
+	public void setWarmUpSize(int warmUpSize) {
+		this.warmUpSize = warmUpSize;
+	}
+
+	/**
+	 * Fills the user cache with the first users of the registry.
+	 */
+	public void warmUp() {
+		long start = System.currentTimeMillis();
+		int loaded = 0;
+
+		String cursor = null;
+		while(loaded < warmUpSize) {
+			UserPage page = delegate.search(null, null, null, cursor,
+					Math.min(WARM_UP_PAGE, warmUpSize - loaded));
+			for(User user : page.getUsers())
+				users.put(user.getSaid(), user);
+			loaded += page.getUsers().size();
+
+			cursor = page.getNext();
+			if(cursor == null)
+				break;
+		}
+
+		LOG.info("Warmed up user cache with {} users in {} ms",
+				loaded, System.currentTimeMillis() - start);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	@Override
+	public User getBySaid(String said) {
+		ExpiringLruCache<String, User> cache = users;
+		User user = cache.get(said);
+		if(user != null)
+			return user;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		user = delegate.getBySaid(said);
+		recordLoad(start);
+
+		if(generation.get() == before)
+			cache.put(said, user);
+		return user;
+	}
+
+	/**
+	 * Serves the cached users and loads only the missing ones, with a single 
+	 * call to the delegate.
+	 */
+	@Override
+	public List<User> getBySaids(Collection<String> saids) {
+		ExpiringLruCache<String, User> cache = users;
+		
+		Map<String, User> found = new HashMap<String, User>();
+		List<String> missing = new ArrayList<String>();
+		for(String said : new LinkedHashSet<String>(saids)) {
+			User user = said == null ? null : cache.get(said);
+			if(user != null)
+				found.put(said, user);
+			else if(said != null)
+				missing.add(said);
+		}
+		
+		if(!missing.isEmpty()) {
+			long before = generation.get();
+			long start = System.nanoTime();
+			List<User> loaded = delegate.getBySaids(missing);
+			recordLoad(start);
+			
+			boolean current = generation.get() == before;
+			for(User user : loaded) {
+				found.put(user.getSaid(), user);
+				if(current)
+					cache.put(user.getSaid(), user);
+			}
+		}
+		
+		List<User> result = new ArrayList<User>(found.size());
+		for(String said : new LinkedHashSet<String>(saids)) {
+			User user = found.get(said);
+			if(user != null)
+				result.add(user);
+		}
+		return result;
+	}
+	
+	@Override
+	public List<User> search(String name, String surname, String nickname) {
+		// the whole registry is not worth a cache entry
+		if(name == null && surname == null && nickname == null)
+			return delegate.search(name, surname, nickname);
+
+		String key = key("search", name, surname, nickname);
+		@SuppressWarnings("unchecked")
+		List<User> result = (List<User>) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.search(name, surname, nickname);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public List<User> searchAll(String query) {
+		String key = key("searchAll", query);
+		@SuppressWarnings("unchecked")
+		List<User> result = (List<User>) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.searchAll(query);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public List<User> searchAllLike(String query) {
+		String key = key("searchAllLike", query);
+		@SuppressWarnings("unchecked")
+		List<User> result = (List<User>) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.searchAllLike(query);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit) {
+		String key = key("searchPage", name, surname, nickname, cursor,
+				String.valueOf(limit));
+		UserPage result = (UserPage) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.search(name, surname, nickname, cursor, limit);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public UserPage searchAll(String query, String cursor, int limit) {
+		String key = key("searchAllPage", query, cursor, String.valueOf(limit));
+		UserPage result = (UserPage) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.searchAll(query, cursor, limit);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public UserPage searchAllLike(String query, String cursor, int limit) {
+		String key = key("searchAllLikePage", query, cursor,
+				String.valueOf(limit));
+		UserPage result = (UserPage) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.searchAllLike(query, cursor, limit);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public UserPage searchFuzzy(String query, int maxDistance, String cursor,
+			int limit) {
+		String key = key("searchFuzzyPage", query, String.valueOf(maxDistance),
+				cursor, String.valueOf(limit));
+		UserPage result = (UserPage) searches.get(key);
+		if(result != null)
+			return result;
+
+		long before = generation.get();
+		long start = System.nanoTime();
+		result = delegate.searchFuzzy(query, maxDistance, cursor, limit);
+		return cacheSearch(key, result, before, start);
+	}
+
+	@Override
+	public void visitAll(UserVisitor visitor) throws IOException {
+		delegate.visitAll(visitor);
+	}
+
+	@Override
+	public User register(User user) {
+		return delegate.register(user);
+	}
+
+	@Override
+	public List<String> registerAll(List<User> users) {
+		return delegate.registerAll(users);
+	}
+
+	@Override
+	public User update(String said, String name, String surname,
+			String nickname) {
+		return delegate.update(said, name, surname, nickname);
+	}
+
+	@Override
+	public User remove(String said) {
+		return delegate.remove(said);
+	}
+
+	/**
+	 * Listeners are registered with the delegate, so they see every change
+	 * exactly once.
+	 */
+	@Override
+	public void addListener(UserListener listener) {
+		delegate.addListener(listener);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	public double getHitRatio() {
+		long hits = users.getHits() + searches.getHits();
+		long total = hits + users.getMisses() + searches.getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getEvictions() {
+		return users.getEvictions() + searches.getEvictions();
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public double getAverageLoadMillis() {
+		long count = loads.get();
+		return count == 0 ? 0 : loadNanos.get() / 1e6 / count;
+	}
+
+	public ExpiringLruCache<String, User> getUserCache() {
+		return users;
+	}
+
+	public ExpiringLruCache<String, Object> getSearchCache() {
+		return searches;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void invalidate(User user) {
+		generation.incrementAndGet();
+		users.remove(user.getSaid());
+		searches.clear();
+	}
+
+	private <T> T cacheSearch(String key, T result, long before, long start) {
+		recordLoad(start);
+		if(generation.get() == before)
+			searches.put(key, result);
+		return result;
+	}
+
+	private void recordLoad(long start) {
+		loads.incrementAndGet();
+		loadNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	private static String key(String... parts) {
+		StringBuilder key = new StringBuilder();
+		for(String part : parts) {
+			// \u0001 marks null so that it differs from the string "null"
+			key.append(part == null ? "\u0001" : part).append('\u0000');
+		}
+		return key.toString();
+	}
+
+}
@@ -0,0 +1,337 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trie of the distinct names, surnames and nicknames of the registry,
+ * lower-cased, for the terms within a small Levenshtein distance of a
+ * query. A search carries one row of the distance table per trie level,
+ * which amounts to running a Levenshtein automaton of the query over the
+ * vocabulary: a branch is left as soon as its prefix is further away than
+ * the distance, so only a small part of the trie is visited.
+ *
+ * Each term keeps the spellings it was registered with, so that the users
+ * can be looked up by the exact values afterwards. Spellings are counted
+ * per user carrying them and taken out with the last one, so searches only
+ * return spellings that still find somebody.
+ */
+public class FuzzyIndex implements UserListener {
+
+	/** above, most of the trie is visited and a scan is as good */
+	public static final int MAX_DISTANCE = 2;
+
+	private static final char[] NO_LABELS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private static class Node {
+		/** sorted, children[i] follows labels[i] */
+		char[] labels = NO_LABELS;
+		Node[] children = NO_CHILDREN;
+		/** null unless a term ends here */
+		String[] spellings;
+		/** counts[i] users carry spellings[i] */
+		int[] counts;
+	}
+
+	/** a trie node with the row of the distance table for its prefix */
+	private static class Step {
+		final Node node;
+		final int[] row;
+
+		Step(Node node, int[] row) {
+			this.node = node;
+			this.row = row;
+		}
+	}
+
+	private final Node root = new Node();
+	private int size;
+
+	/** said -> spellings indexed for the user */
+	private final Map<String, String[]> documents =
+			new HashMap<String, String[]>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @return the spellings of all terms within <code>maxDistance</code>
+	 * 		of the query, closest first
+	 */
+	public List<String> search(String query, int maxDistance) {
+		if(maxDistance < 0 || maxDistance > MAX_DISTANCE)
+			throw new IllegalArgumentException("Distance out of range 0.."
+					+ MAX_DISTANCE + ": " + maxDistance);
+
+		String needle = MemoryUserProvider.normalize(query);
+		int length = needle.length();
+		List<List<String>> byDistance = new ArrayList<List<String>>();
+		for(int d = 0; d <= maxDistance; d++)
+			byDistance.add(new ArrayList<String>());
+
+		int[] first = new int[length + 1];
+		for(int j = 0; j <= length; j++)
+			first[j] = j;
+
+		lock.readLock().lock();
+		try {
+			List<Step> pending = new ArrayList<Step>();
+			pending.add(new Step(root, first));
+			while(!pending.isEmpty()) {
+				Step step = pending.remove(pending.size() - 1);
+				Node node = step.node;
+				int[] previous = step.row;
+
+				if(node.spellings != null && previous[length] <= maxDistance) {
+					byDistance.get(previous[length]).addAll(
+							Arrays.asList(node.spellings));
+				}
+
+				for(int c = 0; c < node.labels.length; c++) {
+					char label = node.labels[c];
+					int[] row = new int[length + 1];
+					row[0] = previous[0] + 1;
+					int rowMin = row[0];
+					for(int j = 1; j <= length; j++) {
+						int substitution = previous[j - 1]
+								+ (needle.charAt(j - 1) == label ? 0 : 1);
+						row[j] = Math.min(substitution,
+								Math.min(previous[j], row[j - 1]) + 1);
+						rowMin = Math.min(rowMin, row[j]);
+					}
+					// longer prefixes only get further away
+					if(rowMin <= maxDistance)
+						pending.add(new Step(node.children[c], row));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		List<String> spellings = new ArrayList<String>();
+		for(List<String> matches : byDistance)
+			spellings.addAll(matches);
+		return spellings;
+	}
+
+	/**
+	 * @return the number of distinct terms
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the spellings of the user, replacing those it was indexed
+	 * with before.
+	 */
+	public void add(User user) {
+		String[] spellings = new String[] {
+				user.getName(), user.getSurname(), user.getNickname()
+		};
+
+		lock.writeLock().lock();
+		try {
+			unindex(user.getSaid());
+			documents.put(user.getSaid(), spellings);
+			for(String spelling : spellings)
+				add(spelling);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(User user) {
+		lock.writeLock().lock();
+		try {
+			unindex(user.getSaid());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			root.labels = NO_LABELS;
+			root.children = NO_CHILDREN;
+			root.spellings = null;
+			root.counts = null;
+			documents.clear();
+			size = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void registered(User user) {
+		add(user);
+	}
+
+	@Override
+	public void updated(User user) {
+		add(user);
+	}
+
+	@Override
+	public void removed(User user) {
+		remove(user);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void add(String spelling) {
+		if(spelling == null)
+			return;
+		String term = MemoryUserProvider.normalize(spelling);
+
+		Node node = root;
+		for(int i = 0; i < term.length(); i++)
+			node = child(node, term.charAt(i));
+
+		if(node.spellings == null) {
+			node.spellings = new String[] { spelling };
+			node.counts = new int[] { 1 };
+			size++;
+			return;
+		}
+		for(int i = 0; i < node.spellings.length; i++) {
+			if(node.spellings[i].equals(spelling)) {
+				node.counts[i]++;
+				return;
+			}
+		}
+		node.spellings = Arrays.copyOf(
+				node.spellings, node.spellings.length + 1);
+		node.spellings[node.spellings.length - 1] = spelling;
+		node.counts = Arrays.copyOf(node.counts, node.counts.length + 1);
+		node.counts[node.counts.length - 1] = 1;
+	}
+
+	private void unindex(String said) {
+		String[] spellings = documents.remove(said);
+		if(spellings == null)
+			return;
+
+		for(String spelling : spellings)
+			remove(spelling);
+	}
+
+	private void remove(String spelling) {
+		if(spelling == null)
+			return;
+		String term = MemoryUserProvider.normalize(spelling);
+
+		// nodes from the root to the term
+		Node[] path = new Node[term.length() + 1];
+		path[0] = root;
+		for(int i = 0; i < term.length(); i++) {
+			int index = Arrays.binarySearch(path[i].labels, term.charAt(i));
+			if(index < 0)
+				return;
+			path[i + 1] = path[i].children[index];
+		}
+
+		Node node = path[term.length()];
+		if(node.spellings == null)
+			return;
+		int known = Arrays.asList(node.spellings).indexOf(spelling);
+		if(known < 0 || --node.counts[known] > 0)
+			return;
+
+		if(node.spellings.length > 1) {
+			node.spellings = remove(node.spellings, known);
+			node.counts = remove(node.counts, known);
+			return;
+		}
+		node.spellings = null;
+		node.counts = null;
+		size--;
+
+		// drops the branch that led to this term only
+		for(int i = term.length(); i > 0; i--) {
+			Node child = path[i];
+			if(child.spellings != null || child.labels.length > 0)
+				break;
+			Node parent = path[i - 1];
+			int index = Arrays.binarySearch(parent.labels, term.charAt(i - 1));
+			parent.labels = remove(parent.labels, index);
+			parent.children = remove(parent.children, index);
+		}
+	}
+
+	private static Node child(Node node, char label) {
+		int index = Arrays.binarySearch(node.labels, label);
+		if(index >= 0)
+			return node.children[index];
+
+		index = -index - 1;
+		Node child = new Node();
+		node.labels = insert(node.labels, index, label);
+		Node[] children = new Node[node.children.length + 1];
+		System.arraycopy(node.children, 0, children, 0, index);
+		children[index] = child;
+		System.arraycopy(node.children, index, children, index + 1,
+				node.children.length - index);
+		node.children = children;
+		return child;
+	}
+
+	private static char[] insert(char[] labels, int index, char label) {
+		char[] inserted = new char[labels.length + 1];
+		System.arraycopy(labels, 0, inserted, 0, index);
+		inserted[index] = label;
+		System.arraycopy(labels, index, inserted, index + 1,
+				labels.length - index);
+		return inserted;
+	}
+
+	private static char[] remove(char[] labels, int index) {
+		char[] removed = new char[labels.length - 1];
+		System.arraycopy(labels, 0, removed, 0, index);
+		System.arraycopy(labels, index + 1, removed, index,
+				removed.length - index);
+		return removed;
+	}
+
+	private static int[] remove(int[] counts, int index) {
+		int[] removed = new int[counts.length - 1];
+		System.arraycopy(counts, 0, removed, 0, index);
+		System.arraycopy(counts, index + 1, removed, index,
+				removed.length - index);
+		return removed;
+	}
+
+	private static <T> T[] remove(T[] values, int index) {
+		T[] removed = Arrays.copyOf(values, values.length - 1);
+		System.arraycopy(values, index + 1, removed, index,
+				removed.length - index);
+		return removed;
+	}
+
+}
@@ -0,0 +1,696 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link UserProvider} keeping the registry in a Lucene index below the app
+ * folder (lucene.index.folder). The catch all, like and fuzzy searches are
+ * ranked by relevance - a whole name before a prefix before a part of a
+ * name - and ties are broken by id; only the best <code>limit + 1</code>
+ * users of a page are collected, so a query never materializes all of its
+ * matches. Their cursors carry the score and id of the last user instead
+ * of the id alone. Every clause scores a constant per tier, so a score
+ * only depends on the tiers a user matches and not on the statistics of
+ * the index; a cursor stays valid while users are written. The lists
+ * without a page are cut at lucene.max.results.
+ *
+ * Every write reopens the searcher before it returns, so reads see it at
+ * once. The index is committed to disk every lucene.commit.interval
+ * seconds and on {@link #close()}; a crash loses the writes since the last
+ * commit.
+ */
+public class LuceneUserProvider extends AbstractUserProvider {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(LuceneUserProvider.class);
+
+	private static final String PROPERTIES_URI =
+			"/application.properties";
+
+	private static final String RANK_CURSOR_PREFIX = "rank:";
+
+	/** below the BooleanQuery limit of 1024 clauses */
+	private static final int MAX_TERMS_PER_QUERY = 500;
+
+	private static final int VISIT_CHUNK = 1000;
+
+	private static final String[] NAME_FIELDS = new String[] {
+			"name", "surname", "nickname" };
+
+	/** exact > prefix > part of a name, the clauses of a match add up */
+	private static final float EXACT_BOOST = 4f;
+	private static final float PREFIX_BOOST = 2f;
+	private static final float MATCH_BOOST = 1f;
+
+	private static final Sort BY_ID = new Sort(
+			new SortField("id", SortField.Type.INT));
+	private static final Sort BY_RANK = new Sort(
+			SortField.FIELD_SCORE, new SortField("id", SortField.Type.INT));
+
+	private final FSDirectory directory;
+	private final IndexWriter writer;
+	private final SearcherManager searcherManager;
+
+	private final int maxResults;
+
+	private final AtomicInteger lastId = new AtomicInteger();
+	private final AtomicBoolean uncommitted = new AtomicBoolean();
+
+	/** serializes the check for an existing said with the write */
+	private final Lock writeLock = new ReentrantLock();
+
+	private final ScheduledExecutorService committer;
+
+	public LuceneUserProvider() {
+		Properties properties = new Properties();
+		try {
+			properties.load(
+					LuceneUserProvider.class.getResourceAsStream(
+							PROPERTIES_URI));
+
+			File appFolder = new File(FilenameUtils.concat(
+					FileUtils.getUserDirectoryPath(),
+					System.getProperty("app.folder",
+							properties.getProperty("app.folder"))));
+			File indexFolder = new File(appFolder, properties.getProperty(
+					"lucene.index.folder", "lucene"));
+			FileUtils.forceMkdir(indexFolder);
+
+			maxResults = Integer.parseInt(
+					properties.getProperty("lucene.max.results", "1000"));
+
+			long start = System.currentTimeMillis();
+			directory = FSDirectory.open(indexFolder);
+			// all fields are indexed untokenized, nothing to analyze
+			IndexWriterConfig config =
+					new IndexWriterConfig(Version.LUCENE_46, null);
+			config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+			writer = new IndexWriter(directory, config);
+			searcherManager = new SearcherManager(writer, true, null);
+
+			lastId.set(maxId());
+			LOG.info("Opened user index with {} users in {} ms",
+					writer.numDocs(), System.currentTimeMillis() - start);
+		} catch(IOException e) {
+			LOG.error("Unable to open user index", e);
+			throw new RuntimeException("Unable to open user index", e);
+		}
+
+		long interval = Long.parseLong(
+				properties.getProperty("lucene.commit.interval", "5"));
+		committer = newCommitter();
+		committer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				commit();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Commits the pending writes and closes the index.
+	 */
+	public void close() {
+		committer.shutdownNow();
+		writeLock.lock();
+		try {
+			searcherManager.close();
+			writer.close();
+			directory.close();
+		} catch(IOException e) {
+			LOG.warn("Unable to close user index", e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the changes since the last commit to disk.
+	 */
+	public void commit() {
+		if(!uncommitted.getAndSet(false))
+			return;
+		try {
+			writer.commit();
+		} catch(IOException e) {
+			uncommitted.set(true);
+			LOG.error("Unable to commit user index", e);
+		} catch(RuntimeException e) {
+			// closed meanwhile
+			LOG.warn("Unable to commit user index", e);
+		}
+	}
+
+	@Override
+	public User register(User user) {
+		writeLock.lock();
+		try {
+			if(findBySaid(user.getSaid()) != null)
+				throw new IllegalArgumentException("User exists");
+
+			user.setId(lastId.incrementAndGet());
+			PhoneticKeys.apply(user);
+			writer.addDocument(toDocument(user));
+			refresh();
+
+			fireRegistered(user);
+			return user;
+		} catch(IOException e) {
+			LOG.error("Unabe to create user", e);
+			throw new IllegalArgumentException("Unabe to create user", e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public List<String> registerAll(List<User> users) {
+		List<String> errors = new ArrayList<String>(users.size());
+		List<User> created = new ArrayList<User>();
+
+		writeLock.lock();
+		try {
+			List<String> saids = new ArrayList<String>(users.size());
+			for(User user : users)
+				saids.add(user.getSaid());
+			Set<String> existing = new HashSet<String>();
+			for(User user : getBySaids(saids))
+				existing.add(user.getSaid());
+
+			for(User user : users) {
+				if(user.getSaid() == null || user.getSaid().equals("")) {
+					errors.add("Missing SAID");
+				} else if(!existing.add(user.getSaid())) {
+					errors.add("User exists");
+				} else {
+					user.setId(lastId.incrementAndGet());
+					PhoneticKeys.apply(user);
+					writer.addDocument(toDocument(user));
+					created.add(user);
+					errors.add(null);
+				}
+			}
+			// one reopen for the whole batch
+			refresh();
+		} catch(IOException e) {
+			LOG.error("Unabe to create users", e);
+			throw new IllegalStateException(
+					"Unable to create users - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
+		}
+
+		for(User user : created)
+			fireRegistered(user);
+		return errors;
+	}
+
+	@Override
+	public List<User> search(String name, String surname, String nickname) {
+		return search(name, surname, nickname, null, maxResults).getUsers();
+	}
+
+	@Override
+	public List<User> searchAll(String query) {
+		return searchAll(query, null, maxResults).getUsers();
+	}
+
+	@Override
+	public List<User> searchAllLike(String query) {
+		return searchAllLike(query, null, maxResults).getUsers();
+	}
+
+	/**
+	 * Exact matches, ordered by id as with the other providers.
+	 */
+	@Override
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit) {
+		int afterId = UserPage.decodeCursor(cursor);
+
+		BooleanQuery query = new BooleanQuery();
+		query.add(NumericRangeQuery.newIntRange(
+				"id", afterId, null, false, true), Occur.MUST);
+		if(name != null)
+			query.add(new TermQuery(new Term("name", name)), Occur.MUST);
+		if(surname != null)
+			query.add(new TermQuery(new Term("surname", surname)), Occur.MUST);
+		if(nickname != null)
+			query.add(new TermQuery(new Term("nickname", nickname)),
+					Occur.MUST);
+
+		try {
+			return UserPage.of(top(query, BY_ID, null, limit + 1), limit);
+		} catch(IOException e) {
+			LOG.error("Unable to search users", e);
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+
+	/**
+	 * Same matches as a SQL <code>LIKE</code> of the query on the name,
+	 * surname or nickname; users matching on more of them come first.
+	 */
+	@Override
+	public UserPage searchAll(String query, String cursor, int limit) {
+		if(query == null)
+			return new UserPage(new ArrayList<User>(), null);
+
+		String needle = MemoryUserProvider.normalize(query);
+		String pattern = likeToWildcard(needle);
+		BooleanQuery any = new BooleanQuery(true);
+		for(String field : NAME_FIELDS) {
+			Term term = new Term(lower(field), pattern);
+			any.add(tier(pattern.equals(needle)
+					? new TermQuery(term) : new WildcardQuery(term),
+					MATCH_BOOST), Occur.SHOULD);
+		}
+		return ranked(any, cursor, limit);
+	}
+
+	@Override
+	public UserPage searchAllLike(String query, String cursor, int limit) {
+		String needle = MemoryUserProvider.normalize(String.valueOf(query));
+
+		BooleanQuery any = new BooleanQuery(true);
+		for(String field : NAME_FIELDS) {
+			String lower = lower(field);
+			any.add(tier(new TermQuery(new Term(lower, needle)),
+					EXACT_BOOST), Occur.SHOULD);
+			any.add(tier(new PrefixQuery(new Term(lower, needle)),
+					PREFIX_BOOST), Occur.SHOULD);
+			any.add(tier(new WildcardQuery(new Term(lower,
+					"*" + escapeWildcards(needle) + "*")), MATCH_BOOST),
+					Occur.SHOULD);
+		}
+		return ranked(any, cursor, limit);
+	}
+
+	/**
+	 * Runs Lucene's own Levenshtein automata over the name terms, one per
+	 * distance up to the maximum, so closer spellings match more clauses
+	 * and score higher. Transpositions count as one edit.
+	 */
+	@Override
+	public UserPage searchFuzzy(String query, int maxDistance,
+			String cursor, int limit) {
+		if(maxDistance < 0 || maxDistance > FuzzyIndex.MAX_DISTANCE)
+			throw new IllegalArgumentException("Distance out of range 0.."
+					+ FuzzyIndex.MAX_DISTANCE + ": " + maxDistance);
+
+		query = String.valueOf(query);
+		String needle = MemoryUserProvider.normalize(query);
+		String key = PhoneticKeys.primary(query);
+
+		BooleanQuery any = new BooleanQuery(true);
+		for(String field : NAME_FIELDS) {
+			any.add(tier(new TermQuery(new Term(lower(field), needle)),
+					EXACT_BOOST), Occur.SHOULD);
+			for(int distance = 1; distance <= maxDistance; distance++) {
+				any.add(tier(new FuzzyQuery(new Term(lower(field), needle),
+						distance), MATCH_BOOST), Occur.SHOULD);
+			}
+			if(key != null) {
+				any.add(tier(new TermQuery(new Term(field + "_phonetic", key)),
+						MATCH_BOOST), Occur.SHOULD);
+			}
+		}
+		return ranked(any, cursor, limit);
+	}
+
+	@Override
+	public void visitAll(UserVisitor visitor) throws IOException {
+		int afterId = 0;
+		while(true) {
+			List<User> users = top(NumericRangeQuery.newIntRange(
+					"id", afterId, null, false, true), BY_ID, null,
+					VISIT_CHUNK);
+			for(User user : users)
+				visitor.visit(user);
+			if(users.size() < VISIT_CHUNK)
+				return;
+			afterId = users.get(users.size() - 1).getId();
+		}
+	}
+
+	@Override
+	public User getBySaid(String said) {
+		LOG.info("Searching user with said -> {}", said);
+
+		User user = findBySaid(said);
+		if(user == null) {
+			LOG.info("No user with said -> {} in index", said);
+			throw new IllegalArgumentException("Unknown said -> " + said);
+		}
+		return user;
+	}
+
+	@Override
+	public List<User> getBySaids(Collection<String> saids) {
+		List<String> distinct = new ArrayList<String>(
+				new LinkedHashSet<String>(saids));
+		distinct.remove(null);
+
+		Map<String, User> found = new HashMap<String, User>();
+		try {
+			for(int from = 0; from < distinct.size();
+					from += MAX_TERMS_PER_QUERY) {
+				List<String> chunk = distinct.subList(from,
+						Math.min(distinct.size(), from + MAX_TERMS_PER_QUERY));
+
+				BooleanQuery any = new BooleanQuery();
+				for(String said : chunk)
+					any.add(new TermQuery(new Term("said", said)), Occur.SHOULD);
+				for(User user : top(any, BY_ID, null, chunk.size()))
+					found.put(user.getSaid(), user);
+			}
+		} catch(IOException e) {
+			LOG.error("IOException during user lookup", e);
+			throw new IllegalStateException(
+					"IOException during user lookup - " + e.getMessage());
+		}
+
+		List<User> users = new ArrayList<User>(found.size());
+		for(String said : distinct) {
+			User user = found.get(said);
+			if(user != null)
+				users.add(user);
+		}
+		return users;
+	}
+
+	@Override
+	public User update(String said, String name, String surname,
+			String nickname) {
+		writeLock.lock();
+		try {
+			User user = getBySaid(said);
+			user.setName(name);
+			user.setSurname(surname);
+			user.setNickname(nickname);
+			PhoneticKeys.apply(user);
+			writer.updateDocument(new Term("said", said), toDocument(user));
+			refresh();
+
+			fireUpdated(user);
+			return user;
+		} catch(IOException e) {
+			LOG.error("IOException during user update", e);
+			throw new IllegalStateException(
+					"IOException during user update - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public User remove(String said) {
+		writeLock.lock();
+		try {
+			LOG.info("Removing user with said -> {}", said);
+
+			User user = getBySaid(said);
+			writer.deleteDocuments(new Term("said", said));
+			refresh();
+
+			fireRemoved(user);
+			return user;
+		} catch(IOException e) {
+			LOG.error("IOException during user deletion", e);
+			throw new IllegalStateException(
+					"IOException during user deletion - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Makes the writes so far visible to searches; called with the write
+	 * lock held.
+	 */
+	private void refresh() throws IOException {
+		uncommitted.set(true);
+		searcherManager.maybeRefreshBlocking();
+	}
+
+	private User findBySaid(String said) {
+		if(said == null)
+			return null;
+		try {
+			List<User> users = top(
+					new TermQuery(new Term("said", said)), BY_ID, null, 1);
+			return users.isEmpty() ? null : users.get(0);
+		} catch(IOException e) {
+			LOG.error("IOException during user get", e);
+			throw new IllegalStateException(
+					"IOException during user get - " + e.getMessage());
+		}
+	}
+
+	private int maxId() throws IOException {
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			TopDocs top = searcher.search(new MatchAllDocsQuery(), 1,
+					new Sort(new SortField("id", SortField.Type.INT, true)));
+			if(top.scoreDocs.length == 0)
+				return 0;
+			return searcher.doc(top.scoreDocs[0].doc)
+					.getField("id").numericValue().intValue();
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * One page in relevance order, after the score and id in the cursor.
+	 */
+	private UserPage ranked(Query query, String cursor, int limit) {
+		try {
+			List<ScoreDoc> hits = new ArrayList<ScoreDoc>(limit + 1);
+			List<User> users = top(query, BY_RANK, decodeRankCursor(cursor),
+					limit + 1, hits);
+			if(users.size() <= limit)
+				return new UserPage(users, null);
+
+			FieldDoc last = (FieldDoc) hits.get(limit - 1);
+			return new UserPage(new ArrayList<User>(users.subList(0, limit)),
+					encodeRankCursor((Float) last.fields[0],
+							users.get(limit - 1).getId()));
+		} catch(IOException e) {
+			LOG.error("Unable to search users", e);
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+
+	private List<User> top(Query query, Sort sort, FieldDoc after, int n)
+			throws IOException {
+		return top(query, sort, after, n, null);
+	}
+
+	/**
+	 * Collects the best <code>n</code> hits only: the collector keeps a
+	 * queue of that size and skips documents that cannot enter it.
+	 */
+	private List<User> top(Query query, Sort sort, FieldDoc after, int n,
+			List<ScoreDoc> hits) throws IOException {
+		IndexSearcher searcher = searcherManager.acquire();
+		try {
+			boolean scores = sort == BY_RANK;
+			TopDocs top = searcher.searchAfter(
+					after, query, null, n, sort, scores, false);
+
+			List<User> users = new ArrayList<User>(top.scoreDocs.length);
+			for(ScoreDoc scoreDoc : top.scoreDocs) {
+				users.add(toUser(searcher.doc(scoreDoc.doc)));
+				if(hits != null)
+					hits.add(scoreDoc);
+			}
+			return users;
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+
+	private static Document toDocument(User user) {
+		Document document = new Document();
+		document.add(new IntField("id", user.getId(), Store.YES));
+		document.add(new NumericDocValuesField("id", user.getId()));
+		document.add(new StringField("said", user.getSaid(), Store.YES));
+		if(user.getKey() != null)
+			document.add(new StoredField("key", user.getKey()));
+
+		add(document, "name", user.getName(), user.getNamePhonetic());
+		add(document, "surname", user.getSurname(),
+				user.getSurnamePhonetic());
+		add(document, "nickname", user.getNickname(),
+				user.getNicknamePhonetic());
+		return document;
+	}
+
+	private static void add(Document document, String field, String value,
+			String phonetic) {
+		if(value == null)
+			return;
+		document.add(new StringField(field, value, Store.YES));
+		document.add(new StringField(lower(field),
+				MemoryUserProvider.normalize(value), Store.NO));
+		if(phonetic != null)
+			document.add(new StringField(field + "_phonetic", phonetic,
+					Store.YES));
+	}
+
+	private static User toUser(Document document) {
+		User user = new User(document.get("said"), document.get("name"),
+				document.get("surname"), document.get("nickname"));
+		user.setId(document.getField("id").numericValue().intValue());
+		user.setKey(document.get("key"));
+		user.setNamePhonetic(document.get("name_phonetic"));
+		user.setSurnamePhonetic(document.get("surname_phonetic"));
+		user.setNicknamePhonetic(document.get("nickname_phonetic"));
+		return user;
+	}
+
+	private static String lower(String field) {
+		return field + "_lower";
+	}
+
+	/**
+	 * Scores every match of the query with the boost alone, whatever the
+	 * term frequencies of the index.
+	 */
+	private static Query tier(Query query, float boost) {
+		Query constant = new ConstantScoreQuery(query);
+		constant.setBoost(boost);
+		return constant;
+	}
+
+	/**
+	 * Maps the <code>%</code> and <code>_</code> of a SQL <code>LIKE</code>
+	 * to the wildcards of Lucene.
+	 */
+	private static String likeToWildcard(String pattern) {
+		return escapeWildcards(pattern).replace('%', '*').replace('_', '?');
+	}
+
+	private static String escapeWildcards(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '*' || c == '?' || c == '\\')
+				escaped.append('\\');
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	private static String encodeRankCursor(float score, int lastId) {
+		return Base64.encodeBase64URLSafeString((RANK_CURSOR_PREFIX
+				+ Float.floatToIntBits(score) + ":" + lastId).getBytes());
+	}
+
+	/**
+	 * @return the position after the last user of the previous page, null
+	 * 		for the first page
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	private static FieldDoc decodeRankCursor(String cursor) {
+		if(cursor == null || cursor.length() == 0)
+			return null;
+
+		String decoded = new String(Base64.decodeBase64(cursor));
+		if(!decoded.startsWith(RANK_CURSOR_PREFIX))
+			throw new IllegalArgumentException("Invalid cursor");
+		String[] parts = decoded.substring(
+				RANK_CURSOR_PREFIX.length()).split(":");
+		if(parts.length != 2)
+			throw new IllegalArgumentException("Invalid cursor");
+		try {
+			float score = Float.intBitsToFloat(Integer.parseInt(parts[0]));
+			int lastId = Integer.parseInt(parts[1]);
+			// the ids are unique, the document number never breaks a tie
+			return new FieldDoc(Integer.MAX_VALUE, score,
+					new Object[] { score, lastId });
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+	}
+
+	private static ScheduledExecutorService newCommitter() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "lucene-user-committer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+}
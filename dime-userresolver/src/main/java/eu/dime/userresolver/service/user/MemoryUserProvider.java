@@ -14,73 +14,391 @@
 
 package eu.dime.userresolver.service.user;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MemoryUserProvider implements UserProvider{
-	
-	private int lastId = 0;
-	private List<User> users = new ArrayList<User>();
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-persistent {@link UserProvider}. Users are indexed by said, by the
+ * lower-cased name, surname and nickname and by their phonetic keys so
+ * that lookups do not scan the registry. Reads are lock-free; writes are
+ * serialized so that the indexes never disagree. Stored users are
+ * complete before they are published and replaced rather than modified,
+ * so a reader never observes a half-updated user.
+ */
+public class MemoryUserProvider extends AbstractUserProvider{
+	private static final Logger LOG =
+			LoggerFactory.getLogger(MemoryUserProvider.class);
+
+	static final Comparator<User> BY_ID = new Comparator<User>() {
+		@Override
+		public int compare(User u1, User u2) {
+			return u1.getId() < u2.getId() ? -1 :
+				(u1.getId() == u2.getId() ? 0 : 1);
+		}
+	};
+
+	private final AtomicInteger lastId = new AtomicInteger();
+
+	private final ConcurrentMap<String, User> bySaid =
+			new ConcurrentHashMap<String, User>();
+	private final ConcurrentMap<String, Set<User>> byName =
+			new ConcurrentHashMap<String, Set<User>>();
+	private final ConcurrentMap<String, Set<User>> bySurname =
+			new ConcurrentHashMap<String, Set<User>>();
+	private final ConcurrentMap<String, Set<User>> byNickname =
+			new ConcurrentHashMap<String, Set<User>>();
+	private final ConcurrentMap<String, Set<User>> byPhonetic =
+			new ConcurrentHashMap<String, Set<User>>();
 	
+	private final FuzzyIndex fuzzyIndex = new FuzzyIndex();
+
+	private final Object writeLock = new Object();
+
 	@Override
 	public User register(User user) {
-		
-		if(search(user.getName(), user.getSurname(), user.getNickname()).size() 
-				!= 0) {
-			throw new IllegalArgumentException("Duplicate user");
+		if(user.getSaid() == null)
+			throw new IllegalArgumentException("Missing SAID");
+
+		User stored = copy(user);
+		PhoneticKeys.apply(stored);
+		synchronized(writeLock) {
+			if(bySaid.containsKey(stored.getSaid()))
+				throw new IllegalArgumentException("User exists");
+
+			stored.setId(lastId.incrementAndGet());
+			bySaid.put(stored.getSaid(), stored);
+			index(stored);
 		}
-		
-		user.setId(++lastId);
-		users.add(user);
-		
-		return user;
-	}  
+		user.setId(stored.getId());
+		fireRegistered(stored);
+
+		return stored;
+	}
+
+	@Override
+	public List<String> registerAll(List<User> users) {
+		List<String> errors = new ArrayList<String>(users.size());
+		for(User user : users) {
+			try {
+				register(user);
+				errors.add(null);
+			} catch(IllegalArgumentException e) {
+				errors.add(e.getMessage());
+			}
+		}
+		return errors;
+	}
 
 	@Override
 	public List<User> search(String name, String surname, String nickname) {
+		if(name == null && surname == null && nickname == null)
+			return sorted(bySaid.values());
+
+		Set<User> candidates = null;
+		candidates = smaller(candidates, lookup(byName, name));
+		candidates = smaller(candidates, lookup(bySurname, surname));
+		candidates = smaller(candidates, lookup(byNickname, nickname));
+
 		List<User> results = new ArrayList<User>();
-		
-		for(User user : users) {
-			if(
-				name == null ? true : user.getName().equals(name)
-				&&
-				surname == null ? true : user.getSurname().equals(surname)
-				&&
-				nickname == null ? true : user.getNickname().equals(nickname)
-			   ) {
+		for(User user : candidates) {
+			if(matches(name, user.getName())
+					&& matches(surname, user.getSurname())
+					&& matches(nickname, user.getNickname())) {
 				results.add(user);
 			}
 		}
+		Collections.sort(results, BY_ID);
 		return results;
 	}
-	
+
+	/**
+	 * Same semantics as a SQL <code>LIKE</code> without wildcards: a
+	 * case-insensitive match of the whole name, surname or nickname.
+	 */
 	@Override
-	public List<User> searchAll(String searchAll) {
-		return null;
+	public List<User> searchAll(String query) {
+		if(query == null)
+			return new ArrayList<User>();
+
+		Set<User> results = new HashSet<User>();
+		results.addAll(lookup(byName, query));
+		results.addAll(lookup(bySurname, query));
+		results.addAll(lookup(byNickname, query));
+
+		return sorted(results);
 	}
 
 	@Override
 	public List<User> searchAllLike(String query) {
-		// TODO Auto-generated method stub
-		return null;
+		String needle = normalize(String.valueOf(query));
+
+		List<User> results = new ArrayList<User>();
+		for(User user : bySaid.values()) {
+			if(contains(user.getName(), needle)
+					|| contains(user.getSurname(), needle)
+					|| contains(user.getNickname(), needle)) {
+				results.add(user);
+			}
+		}
+		Collections.sort(results, BY_ID);
+		return results;
+	}
+
+	@Override
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit) {
+		return UserPage.slice(search(name, surname, nickname), cursor, limit);
+	}
+
+	@Override
+	public UserPage searchAll(String query, String cursor, int limit) {
+		return UserPage.slice(searchAll(query), cursor, limit);
+	}
+
+	@Override
+	public UserPage searchAllLike(String query, String cursor, int limit) {
+		return UserPage.slice(searchAllLike(query), cursor, limit);
+	}
+
+	@Override
+	public UserPage searchFuzzy(String query, int maxDistance, 
+			String cursor, int limit) {
+		query = String.valueOf(query);
+
+		Set<User> results = new HashSet<User>();
+		for(String spelling : fuzzyIndex.search(query, maxDistance)) {
+			results.addAll(lookup(byName, spelling));
+			results.addAll(lookup(bySurname, spelling));
+			results.addAll(lookup(byNickname, spelling));
+		}
+		String key = PhoneticKeys.primary(query);
+		if(key != null)
+			results.addAll(lookup(byPhonetic, key));
+
+		return UserPage.slice(sorted(results), cursor, limit);
+	}
+
+	@Override
+	public void visitAll(UserVisitor visitor) throws IOException {
+		for(User user : sorted(bySaid.values()))
+			visitor.visit(user);
 	}
 
 	@Override
 	public User remove(String said) {
-		// TODO Auto-generated method stub
-		return null;
+		LOG.info("Removing user with said -> {}", said);
+
+		User user;
+		synchronized(writeLock) {
+			user = said == null ? null : bySaid.remove(said);
+			if(user == null) {
+				LOG.info("No user with said -> {} in memory", said);
+				throw new IllegalArgumentException("Unknown said -> " + said);
+			}
+			unindex(user);
+		}
+		fireRemoved(user);
+
+		return user;
 	}
 
 	@Override
 	public User getBySaid(String said) {
-		// TODO Auto-generated method stub
-		return null;
+		User user = said == null ? null : bySaid.get(said);
+		if(user == null) {
+			LOG.info("No user with said -> {} in memory", said);
+			throw new IllegalArgumentException("Unknown said -> " + said);
+		}
+		return user;
+	}
+
+	@Override
+	public List<User> getBySaids(Collection<String> saids) {
+		List<User> users = new ArrayList<User>(saids.size());
+		for(String said : new LinkedHashSet<String>(saids)) {
+			User user = said == null ? null : bySaid.get(said);
+			if(user != null)
+				users.add(user);
+		}
+		return users;
 	}
 
 	@Override
 	public User update(String said, String name, String surname, String nickname) {
-		// TODO Auto-generated method stub
-		return null;
+		User user;
+		synchronized(writeLock) {
+			User old = said == null ? null : bySaid.get(said);
+			if(old == null) {
+				LOG.info("No user with said -> {} in memory", said);
+				throw new IllegalArgumentException("Unknown said -> " + said);
+			}
+
+			user = copy(old);
+			user.setName(name);
+			user.setSurname(surname);
+			user.setNickname(nickname);
+			PhoneticKeys.apply(user);
+
+			unindex(old);
+			bySaid.put(said, user);
+			index(user);
+		}
+		fireUpdated(user);
+
+		return user;
+	}
+
+	/**
+	 * Stores a copy of the user under its own id, replacing the user with
+	 * the same said if there is one. For providers mirroring a registry
+	 * kept elsewhere, which also assigned the id.
+	 */
+	protected User replace(User user) {
+		if(user.getSaid() == null)
+			throw new IllegalArgumentException("Missing SAID");
+
+		User stored = copy(user);
+		PhoneticKeys.apply(stored);
+		User old;
+		synchronized(writeLock) {
+			old = bySaid.put(stored.getSaid(), stored);
+			if(old != null)
+				unindex(old);
+			index(stored);
+			if(stored.getId() > lastId.get())
+				lastId.set(stored.getId());
+		}
+		if(old == null)
+			fireRegistered(stored);
+		else
+			fireUpdated(stored);
+
+		return stored;
+	}
+
+	/**
+	 * Removes the user with the said, if there is one.
+	 *
+	 * @return the removed user, null if there was none
+	 */
+	protected User discard(String said) {
+		User user;
+		synchronized(writeLock) {
+			user = said == null ? null : bySaid.remove(said);
+			if(user == null)
+				return null;
+			unindex(user);
+		}
+		fireRemoved(user);
+
+		return user;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	static String normalize(String value) {
+		return value.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static boolean matches(String expected, String actual) {
+		return expected == null || expected.equals(actual);
+	}
+
+	private static boolean contains(String value, String needle) {
+		return value != null && normalize(value).contains(needle);
+	}
+
+	private static Set<User> lookup(
+			ConcurrentMap<String, Set<User>> index, String value) {
+		if(value == null)
+			return null;
+		Set<User> users = index.get(normalize(value));
+		return users == null ? Collections.<User>emptySet() : users;
+	}
+
+	private static Set<User> smaller(Set<User> current, Set<User> other) {
+		if(other == null)
+			return current;
+		if(current == null || other.size() < current.size())
+			return other;
+		return current;
+	}
+
+	private static List<User> sorted(Collection<User> users) {
+		List<User> results = new ArrayList<User>(users);
+		Collections.sort(results, BY_ID);
+		return results;
+	}
+
+	private void index(User user) {
+		add(byName, user.getName(), user);
+		add(bySurname, user.getSurname(), user);
+		add(byNickname, user.getNickname(), user);
+
+		add(byPhonetic, user.getNamePhonetic(), user);
+		add(byPhonetic, user.getSurnamePhonetic(), user);
+		add(byPhonetic, user.getNicknamePhonetic(), user);
+		fuzzyIndex.add(user);
+	}
+
+	private void unindex(User user) {
+		remove(byName, user.getName(), user);
+		remove(bySurname, user.getSurname(), user);
+		remove(byNickname, user.getNickname(), user);
+
+		remove(byPhonetic, user.getNamePhonetic(), user);
+		remove(byPhonetic, user.getSurnamePhonetic(), user);
+		remove(byPhonetic, user.getNicknamePhonetic(), user);
+		fuzzyIndex.remove(user);
+	}
+
+	private static void add(ConcurrentMap<String, Set<User>> index,
+			String value, User user) {
+		if(value == null)
+			return;
+		String key = normalize(value);
+		Set<User> users = index.get(key);
+		if(users == null) {
+			users = Collections.newSetFromMap(
+					new ConcurrentHashMap<User, Boolean>());
+			index.put(key, users);
+		}
+		users.add(user);
+	}
+
+	private static void remove(ConcurrentMap<String, Set<User>> index,
+			String value, User user) {
+		if(value == null)
+			return;
+		String key = normalize(value);
+		Set<User> users = index.get(key);
+		if(users != null) {
+			users.remove(user);
+			if(users.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	private static User copy(User user) {
+		User copy = new User(user.getSaid(), user.getName(),
+				user.getSurname(), user.getNickname());
+		copy.setId(user.getId());
+		copy.setKey(user.getKey());
+		return copy;
 	}
 
 }
@@ -17,25 +17,40 @@ package eu.dime.userresolver.service.user;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.Where;
 import com.j256.ormlite.support.ConnectionSource;
-import com.j256.ormlite.table.TableUtils;
+import com.j256.ormlite.support.DatabaseConnection;
 
-public class OrmLiteUserProvider implements UserProvider{
+public class OrmLiteUserProvider extends AbstractUserProvider{
 	private static final Logger LOG = 
 			LoggerFactory.getLogger(OrmLiteUserProvider.class);
 	
@@ -45,9 +60,21 @@ public class OrmLiteUserProvider implements UserProvider{
 	
 	private File appFolder;
 	
+	private static final int MAX_IDS_PER_QUERY = 500;
+	
 	private ConnectionSource connectionSource;
 	private Dao<User, Integer> userDao;
 	
+	private TrigramIndex likeIndex = new TrigramIndex();
+	private FuzzyIndex fuzzyIndex = new FuzzyIndex();
+	
+	/*
+	 * SQLite allows a single writer only. Writers queue here instead of 
+	 * failing on the database lock; with WAL journaling readers are not 
+	 * blocked by a running write.
+	 */
+	private final Lock writeLock = new ReentrantLock();
+	
 	public OrmLiteUserProvider() {
 		properties = new Properties();
 		try {
@@ -57,7 +84,8 @@ public class OrmLiteUserProvider implements UserProvider{
 			
 			appFolder = new File(FilenameUtils.concat(
 					FileUtils.getUserDirectoryPath(), 
-					properties.getProperty("app.folder")));
+					System.getProperty("app.folder",
+							properties.getProperty("app.folder"))));
 			
 			FileUtils.forceMkdir(appFolder);
 		} catch(IOException e) {
@@ -66,46 +94,237 @@ public class OrmLiteUserProvider implements UserProvider{
 		}
 		
 		try {
-			connectionSource = new JdbcConnectionSource("jdbc:sqlite:"
+			connectionSource = createConnectionSource("jdbc:sqlite:"
 					+ FilenameUtils.concat(
 							appFolder.getAbsolutePath(), "resolver.db"));
 			
 			userDao = DaoManager.createDao(connectionSource, User.class);
 			
-			// schema upgrade "hack"
-			try {
-				userDao.executeRaw("ALTER TABLE `users` ADD COLUMN key STRING;");
-			} catch (SQLException e){
-				LOG.info("Schema update failed. Already updated?");
-			}
+			SchemaMigrations.migrate(connectionSource, userDao);
 			
-			TableUtils.createTableIfNotExists(connectionSource, User.class);
+			rebuildIndexes();
 		} catch(SQLException e) {
 			LOG.error("Unable to create database", e);
 			throw new RuntimeException("Unable to create database", e);
 		}
 		
+		addListener(likeIndex);
+		addListener(fuzzyIndex);
+	}
+	
+	/**
+	 * Creates a pooled (db.connections=pooled, the default) or a single 
+	 * shared connection source. The semicolon separated db.pragmas are run 
+	 * on every new connection.
+	 * 
+	 * The pool hands out at most db.pool.size connections at a time, 
+	 * further callers wait for one to be released. Connections reused 
+	 * within a transaction do not count again.
+	 */
+	private ConnectionSource createConnectionSource(String url) 
+			throws SQLException {
+		final List<String> pragmas = new ArrayList<String>();
+		for(String pragma : properties.getProperty(
+				"db.pragmas", "journal_mode=WAL;synchronous=NORMAL").split(";")) {
+			if(pragma.trim().length() > 0)
+				pragmas.add(pragma.trim());
+		}
+		
+		String mode = properties.getProperty("db.connections", "pooled");
+		LOG.info("Using {} database connections with pragmas {}", 
+				mode, pragmas);
+		
+		if("single".equals(mode)) {
+			return new JdbcConnectionSource(url) {
+				@Override
+				protected JdbcDatabaseConnection makeConnection(
+						com.j256.ormlite.logger.Logger logger) 
+								throws SQLException {
+					return applyPragmas(super.makeConnection(logger), pragmas);
+				}
+			};
+		}
+		
+		int size = Integer.parseInt(
+				properties.getProperty("db.pool.size", "8").trim());
+		final Semaphore inUse = new Semaphore(size, true);
+		JdbcPooledConnectionSource pooled = new JdbcPooledConnectionSource(url) {
+			@Override
+			protected JdbcDatabaseConnection makeConnection(
+					com.j256.ormlite.logger.Logger logger) 
+							throws SQLException {
+				return applyPragmas(super.makeConnection(logger), pragmas);
+			}
+			
+			// read-only connections are taken through here as well
+			@Override
+			public DatabaseConnection getReadWriteConnection() 
+					throws SQLException {
+				if(getSavedConnection() != null)
+					return super.getReadWriteConnection();
+				
+				try {
+					inUse.acquire();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException(
+							"Interrupted waiting for a connection", e);
+				}
+				try {
+					return super.getReadWriteConnection();
+				} catch(SQLException e) {
+					inUse.release();
+					throw e;
+				} catch(RuntimeException e) {
+					inUse.release();
+					throw e;
+				}
+			}
+			
+			@Override
+			public void releaseConnection(DatabaseConnection connection) 
+					throws SQLException {
+				if(isSavedConnection(connection)) {
+					super.releaseConnection(connection);
+					return;
+				}
+				try {
+					super.releaseConnection(connection);
+				} finally {
+					inUse.release();
+				}
+			}
+		};
+		pooled.setMaxConnectionsFree(size);
+		return pooled;
+	}
+	
+	private static JdbcDatabaseConnection applyPragmas(
+			JdbcDatabaseConnection connection, List<String> pragmas) 
+					throws SQLException {
+		Statement statement = 
+				connection.getInternalConnection().createStatement();
+		try {
+			for(String pragma : pragmas)
+				statement.execute("PRAGMA " + pragma);
+		} finally {
+			statement.close();
+		}
+		return connection;
+	}
+	
+	private void rebuildIndexes() throws SQLException {
+		long start = System.currentTimeMillis();
+		
+		likeIndex.clear();
+		fuzzyIndex.clear();
+		CloseableIterator<User> iterator = userDao.iterator();
+		try {
+			while(iterator.hasNext()) {
+				User user = iterator.next();
+				likeIndex.add(user);
+				fuzzyIndex.add(user);
+			}
+		} finally {
+			iterator.close();
+		}
+		
+		LOG.info("Indexed {} users and {} terms for like and fuzzy search " 
+				+ "in {} ms", new Object[] { likeIndex.size(), 
+						fuzzyIndex.size(), 
+						System.currentTimeMillis() - start });
 	}
 	
 	@Override
 	public User register(User user) {
+		writeLock.lock();
 		try {
 			PreparedQuery<User> query = 
 					userDao.queryBuilder().where().eq(
 							"said", user.getSaid()).prepare();
 			
 			if(userDao.query(query).size() == 0) {
-				int id =userDao.create(user);
-				return userDao.queryForId(id);
+				PhoneticKeys.apply(user);
+				userDao.create(user);
+				User created = userDao.queryForId(user.getId());
+				fireRegistered(created);
+				return created;
 			}
 						
 			throw new IllegalArgumentException("User exists");
 		} catch(SQLException e) {
 			LOG.error("Unabe to create user", e);
 			throw new IllegalArgumentException("Unabe to create user", e);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 	
+	@Override
+	public List<String> registerAll(final List<User> users) {
+		final List<String> errors = new ArrayList<String>(users.size());
+		final List<User> created = new ArrayList<User>();
+		
+		writeLock.lock();
+		try {
+			final Set<String> existing = existingSaids(users);
+			
+			// a batch of OrmLite is no transaction on SQLite, a failed chunk 
+			// would be committed up to the failing user
+			TransactionManager.callInTransaction(connectionSource, 
+					new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for(User user : users) {
+						if(user.getSaid() == null || user.getSaid().equals("")) {
+							errors.add("Missing SAID");
+						} else if(!existing.add(user.getSaid())) {
+							errors.add("User exists");
+						} else {
+							PhoneticKeys.apply(user);
+							userDao.create(user);
+							created.add(user);
+							errors.add(null);
+						}
+					}
+					return null;
+				}
+			});
+			
+			// under the lock, listeners see the writes in order
+			for(User user : created)
+				fireRegistered(user);
+		} catch(SQLException e) {
+			LOG.error("Unabe to create users", e);
+			throw new IllegalStateException(
+					"Unable to create users - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
+		}
+		
+		return errors;
+	}
+	
+	private Set<String> existingSaids(List<User> users) throws SQLException {
+		List<String> saids = new ArrayList<String>(users.size());
+		for(User user : users) {
+			if(user.getSaid() != null)
+				saids.add(user.getSaid());
+		}
+		
+		Set<String> existing = new HashSet<String>();
+		for(int from = 0; from < saids.size(); from += MAX_IDS_PER_QUERY) {
+			List<String> chunk = saids.subList(
+					from, Math.min(saids.size(), from + MAX_IDS_PER_QUERY));
+			
+			QueryBuilder<User, Integer> queryBuilder = userDao.queryBuilder();
+			queryBuilder.selectColumns("said").where().in("said", chunk);
+			for(User user : queryBuilder.query())
+				existing.add(user.getSaid());
+		}
+		return existing;
+	}
+	
 	@Override
 	public List<User> searchAll(String searchAll) {
 		try {
@@ -157,6 +376,7 @@ public class OrmLiteUserProvider implements UserProvider{
 	
 	@Override
 	public User remove(String said) {
+		writeLock.lock();
 		try {
 			LOG.info("Removing user with said -> {}", said);
 			
@@ -171,18 +391,30 @@ public class OrmLiteUserProvider implements UserProvider{
 			}
 			
 			userDao.delete(users.get(0));
+			fireRemoved(users.get(0));
 			
 			return users.get(0);
 		} catch (SQLException e) {
 			LOG.error("SQLException during user deletion", e);
 			throw new IllegalStateException(
 					"SQLException during user deletion - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
 		}
 	}
 	
 	@Override
 	public List<User> searchAllLike(String query) {
 		
+		query = String.valueOf(query);
+		if(TrigramIndex.supports(query)) {
+			try {
+				return queryForIds(likeIndex.searchLike(query));
+			} catch(SQLException e) {
+				return new ArrayList<User>();
+			}
+		}
+		
 		query = '%' + query + '%';
 		
 		try {
@@ -197,6 +429,183 @@ public class OrmLiteUserProvider implements UserProvider{
 		}
 	}
 
+	@Override
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit) {
+		int afterId = UserPage.decodeCursor(cursor);
+		try {
+			QueryBuilder<User, Integer> queryBuilder = pageQuery(limit);
+			
+			Where<User, Integer> where = queryBuilder.where();
+			where.gt("id", afterId);
+			int clauses = 1;
+			if(name != null) {
+				where.eq("name", name);
+				clauses++;
+			}
+			if(surname != null) {
+				where.eq("surname", surname);
+				clauses++;
+			}
+			if(nickname != null) {
+				where.eq("nickname", nickname);
+				clauses++;
+			}
+			if(clauses > 1)
+				where.and(clauses);
+			
+			return UserPage.of(queryBuilder.query(), limit);
+		} catch(SQLException e) {
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+	
+	@Override
+	public UserPage searchAll(String query, String cursor, int limit) {
+		int afterId = UserPage.decodeCursor(cursor);
+		try {
+			return UserPage.of(likeQuery(query, afterId, limit), limit);
+		} catch(SQLException e) {
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+	
+	@Override
+	public UserPage searchAllLike(String query, String cursor, int limit) {
+		int afterId = UserPage.decodeCursor(cursor);
+		
+		query = String.valueOf(query);
+		try {
+			if(TrigramIndex.supports(query)) {
+				List<Integer> ids = new ArrayList<Integer>();
+				for(Integer id : likeIndex.searchLike(query)) {
+					if(id > afterId) {
+						ids.add(id);
+						if(ids.size() > limit)
+							break;
+					}
+				}
+				return UserPage.of(queryForIds(ids), limit);
+			}
+			
+			return UserPage.of(
+					likeQuery('%' + query + '%', afterId, limit), limit);
+		} catch(SQLException e) {
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+	
+	/**
+	 * The spellings within the distance come from the fuzzy index, the 
+	 * users are then found in one query over the indexed name and phonetic 
+	 * columns.
+	 */
+	@Override
+	public UserPage searchFuzzy(String query, int maxDistance, 
+			String cursor, int limit) {
+		int afterId = UserPage.decodeCursor(cursor);
+		
+		query = String.valueOf(query);
+		List<String> spellings = fuzzyIndex.search(query, maxDistance);
+		if(spellings.size() > MAX_IDS_PER_QUERY) {
+			LOG.debug("{} spellings near {}, searching the closest {}", 
+					new Object[] { spellings.size(), query, 
+							MAX_IDS_PER_QUERY });
+			spellings = spellings.subList(0, MAX_IDS_PER_QUERY);
+		}
+		String key = PhoneticKeys.primary(query);
+		if(spellings.isEmpty() && key == null)
+			return new UserPage(new ArrayList<User>(), null);
+		
+		try {
+			// as a subquery SQLite answers the ORs from the column indexes,
+			// a plain page query is run as a scan in id order instead
+			QueryBuilder<User, Integer> matches = userDao.queryBuilder();
+			matches.selectColumns("id");
+			Where<User, Integer> or = matches.where();
+			int clauses = 0;
+			if(!spellings.isEmpty()) {
+				or.in("name", spellings);
+				or.in("surname", spellings);
+				or.in("nickname", spellings);
+				clauses += 3;
+			}
+			if(key != null) {
+				or.eq("name_phonetic", key);
+				or.eq("surname_phonetic", key);
+				or.eq("nickname_phonetic", key);
+				clauses += 3;
+			}
+			or.or(clauses);
+			
+			QueryBuilder<User, Integer> queryBuilder = pageQuery(limit);
+			queryBuilder.where().gt("id", afterId).and().in("id", matches);
+			
+			return UserPage.of(queryBuilder.query(), limit);
+		} catch(SQLException e) {
+			return new UserPage(new ArrayList<User>(), null);
+		}
+	}
+	
+	/**
+	 * Fetches one row more than the page size to detect a following page.
+	 */
+	private QueryBuilder<User, Integer> pageQuery(int limit) {
+		QueryBuilder<User, Integer> queryBuilder = userDao.queryBuilder();
+		queryBuilder.orderBy("id", true).limit(Long.valueOf(limit + 1));
+		return queryBuilder;
+	}
+	
+	private List<User> likeQuery(String pattern, int afterId, int limit) 
+			throws SQLException {
+		QueryBuilder<User, Integer> queryBuilder = pageQuery(limit);
+		Where<User, Integer> where = queryBuilder.where();
+		where.gt("id", afterId);
+		where.like("name", pattern);
+		where.like("surname", pattern);
+		where.like("nickname", pattern);
+		where.or(3);
+		where.and(2);
+		
+		return queryBuilder.query();
+	}
+	
+	@Override
+	public void visitAll(UserVisitor visitor) throws IOException {
+		CloseableIterator<User> iterator;
+		try {
+			iterator = userDao.queryBuilder().orderBy("id", true).iterator();
+		} catch(SQLException e) {
+			LOG.error("SQLException during user export", e);
+			throw new IllegalStateException(
+					"SQLException during user export - " + e.getMessage());
+		}
+		
+		try {
+			while(iterator.hasNext())
+				visitor.visit(iterator.next());
+		} finally {
+			try {
+				iterator.close();
+			} catch(SQLException e) {
+				LOG.warn("Unable to close user iterator", e);
+			}
+		}
+	}
+	
+	private List<User> queryForIds(List<Integer> ids) throws SQLException {
+		List<User> users = new ArrayList<User>(ids.size());
+		for(int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+			List<Integer> chunk = ids.subList(
+					from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+			
+			QueryBuilder<User, Integer> queryBuilder = userDao.queryBuilder();
+			queryBuilder.orderBy("id", true).where().in("id", chunk);
+			users.addAll(queryBuilder.query());
+		}
+		return users;
+	}
+
 	@Override
 	public User getBySaid(String said) {
 		try {
@@ -221,8 +630,43 @@ public class OrmLiteUserProvider implements UserProvider{
 		}
 	}
 	
+	@Override
+	public List<User> getBySaids(Collection<String> saids) {
+		List<String> distinct = new ArrayList<String>(
+				new LinkedHashSet<String>(saids));
+		distinct.remove(null);
+		
+		Map<String, User> found = new HashMap<String, User>();
+		try {
+			for(int from = 0; from < distinct.size(); 
+					from += MAX_IDS_PER_QUERY) {
+				List<String> chunk = distinct.subList(
+						from, Math.min(distinct.size(), from + MAX_IDS_PER_QUERY));
+				
+				QueryBuilder<User, Integer> queryBuilder = 
+						userDao.queryBuilder();
+				queryBuilder.where().in("said", chunk);
+				for(User user : queryBuilder.query())
+					found.put(user.getSaid(), user);
+			}
+		} catch(SQLException e) {
+			LOG.error("SQLException during user lookup", e);
+			throw new IllegalStateException(
+					"SQLException during user lookup - " + e.getMessage());
+		}
+		
+		List<User> users = new ArrayList<User>(found.size());
+		for(String said : distinct) {
+			User user = found.get(said);
+			if(user != null)
+				users.add(user);
+		}
+		return users;
+	}
+	
 	@Override
 	public User update(String said, String name, String surname, String nickname) {
+		writeLock.lock();
 		try {
 			LOG.info("Searching user with said -> {}", said);
 			
@@ -241,12 +685,16 @@ public class OrmLiteUserProvider implements UserProvider{
 			user.setName(name);
 			user.setSurname(surname);
 			user.setNickname(nickname);
+			PhoneticKeys.apply(user);
 			userDao.update(user);
+			fireUpdated(user);
 			return user;
 		} catch (SQLException e) {
 			LOG.error("SQLException during user get", e);
 			throw new IllegalStateException(
 					"SQLException during user get - " + e.getMessage());
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
@@ -0,0 +1,51 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+
+/**
+ * Double Metaphone keys of names, so that "Meyer" finds "Maier". Users are 
+ * stored with the primary key of each name and matched on the primary key 
+ * of the query; the alternate keys, for other pronunciations, would find 
+ * e.g. "Anna" for "Jon".
+ */
+final class PhoneticKeys {
+
+	/** stateless apart from the code length, safe to share */
+	private static final DoubleMetaphone ENCODER = new DoubleMetaphone();
+
+	private PhoneticKeys() {}
+
+	/**
+	 * @return the primary key, null for a value without any letters
+	 */
+	static String primary(String value) {
+		if(value == null)
+			return null;
+		String key = ENCODER.doubleMetaphone(value, false);
+		return key == null || key.length() == 0 ? null : key;
+	}
+
+	/**
+	 * Sets the keys of name, surname and nickname on the user.
+	 */
+	static void apply(User user) {
+		user.setNamePhonetic(primary(user.getName()));
+		user.setSurnamePhonetic(primary(user.getSurname()));
+		user.setNicknamePhonetic(primary(user.getNickname()));
+	}
+
+}
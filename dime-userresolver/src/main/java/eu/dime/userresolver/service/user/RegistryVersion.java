@@ -0,0 +1,95 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+
+/**
+ * Version of the registry, bumped by every registration, update and removal
+ * seen by the {@link UserProvider}. A response computed at one version is
+ * still valid while the version is unchanged.
+ *
+ * The startup time is part of the tag, so tags handed out before a restart
+ * never match afterwards.
+ */
+public class RegistryVersion implements UserListener {
+
+	/**
+	 * Counter, modification time and tag of one version.
+	 */
+	static final class State {
+		final long counter;
+		final long modified;
+		final EntityTag tag;
+
+		State(long epoch, long counter, long modified) {
+			this.counter = counter;
+			// HTTP dates have a resolution of one second
+			this.modified = modified / 1000 * 1000;
+			this.tag = new EntityTag(
+					Long.toString(epoch, 36) + "-" + Long.toString(counter, 36));
+		}
+	}
+
+	private final long epoch = System.currentTimeMillis();
+
+	private volatile State state = new State(epoch, 0, epoch);
+
+	public void setUserProvider(UserProvider userProvider) {
+		userProvider.addListener(this);
+	}
+
+	/**
+	 * Use the returned state for both tag and modification time, so they 
+	 * belong to the same version.
+	 */
+	State current() {
+		return state;
+	}
+
+	public long getCounter() {
+		return state.counter;
+	}
+
+	public EntityTag getEntityTag() {
+		return state.tag;
+	}
+
+	public Date getLastModified() {
+		return new Date(state.modified);
+	}
+
+	@Override
+	public void registered(User user) {
+		bump();
+	}
+
+	@Override
+	public void updated(User user) {
+		bump();
+	}
+
+	@Override
+	public void removed(User user) {
+		bump();
+	}
+
+	private synchronized void bump() {
+		state = new State(epoch, state.counter + 1, System.currentTimeMillis());
+	}
+
+}
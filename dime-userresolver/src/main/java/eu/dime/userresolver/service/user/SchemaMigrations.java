@@ -0,0 +1,236 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * Versioned schema of the user database. The version reached so far is kept
+ * in the <code>schema_version</code> table; on startup only the migrations
+ * above it are run, each one in its own transaction together with the
+ * version update. Databases created before versioning start at version 0.
+ */
+class SchemaMigrations {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SchemaMigrations.class);
+
+	private static abstract class Migration {
+		final int version;
+		final String description;
+
+		Migration(int version, String description) {
+			this.version = version;
+			this.description = description;
+		}
+
+		abstract void apply(ConnectionSource connectionSource,
+				Dao<User, Integer> userDao) throws SQLException;
+	}
+
+	private static final String[] PHONETIC_COLUMNS = new String[] {
+			"name_phonetic", "surname_phonetic", "nickname_phonetic" };
+
+	/** users updated per query while computing phonetic keys */
+	private static final int FILL_CHUNK = 1000;
+
+	private static final List<Migration> MIGRATIONS =
+			new ArrayList<Migration>();
+
+	static {
+		MIGRATIONS.add(new Migration(1, "users table with key column") {
+			@Override
+			void apply(ConnectionSource connectionSource,
+					Dao<User, Integer> userDao) throws SQLException {
+				TableUtils.createTableIfNotExists(connectionSource, User.class);
+				addColumnIfMissing(userDao, "users", "key", "VARCHAR");
+			}
+		});
+
+		MIGRATIONS.add(new Migration(2, "unique index on said") {
+			@Override
+			void apply(ConnectionSource connectionSource,
+					Dao<User, Integer> userDao) throws SQLException {
+				if(hasDuplicateSaids(userDao)) {
+					LOG.warn("Duplicate saids in users table, said index "
+							+ "is created without unique constraint");
+					userDao.executeRaw("CREATE INDEX IF NOT EXISTS "
+							+ "users_said_idx ON users (said)");
+				} else {
+					userDao.executeRaw("CREATE UNIQUE INDEX IF NOT EXISTS "
+							+ "users_said_idx ON users (said)");
+				}
+			}
+		});
+
+		MIGRATIONS.add(new Migration(3, "indexes on search columns") {
+			@Override
+			void apply(ConnectionSource connectionSource,
+					Dao<User, Integer> userDao) throws SQLException {
+				userDao.executeRaw("CREATE INDEX IF NOT EXISTS "
+						+ "users_name_idx ON users (name)");
+				userDao.executeRaw("CREATE INDEX IF NOT EXISTS "
+						+ "users_surname_idx ON users (surname)");
+				userDao.executeRaw("CREATE INDEX IF NOT EXISTS "
+						+ "users_nickname_idx ON users (nickname)");
+			}
+		});
+
+		MIGRATIONS.add(new Migration(4, "phonetic keys for fuzzy search") {
+			@Override
+			void apply(ConnectionSource connectionSource,
+					Dao<User, Integer> userDao) throws SQLException {
+				for(String column : PHONETIC_COLUMNS) {
+					addColumnIfMissing(userDao, "users", column, "VARCHAR");
+					userDao.executeRaw("CREATE INDEX IF NOT EXISTS users_"
+							+ column + "_idx ON users (" + column + ")");
+				}
+				fillPhoneticKeys(userDao);
+			}
+		});
+	}
+
+	private SchemaMigrations() {}
+
+	static int latestVersion() {
+		return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+	}
+
+	/**
+	 * Brings the database to the latest schema version.
+	 */
+	static void migrate(final ConnectionSource connectionSource,
+			final Dao<User, Integer> userDao) throws SQLException {
+		userDao.executeRaw("CREATE TABLE IF NOT EXISTS schema_version "
+				+ "(version INTEGER NOT NULL)");
+
+		int current = currentVersion(userDao);
+		if(current >= latestVersion()) {
+			LOG.debug("Schema is up to date at version {}", current);
+			return;
+		}
+
+		for(final Migration migration : MIGRATIONS) {
+			if(migration.version <= current)
+				continue;
+
+			LOG.info("Migrating schema to version {}: {}",
+					migration.version, migration.description);
+
+			TransactionManager.callInTransaction(connectionSource,
+					new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					migration.apply(connectionSource, userDao);
+					userDao.executeRaw("DELETE FROM schema_version");
+					userDao.executeRaw("INSERT INTO schema_version (version) "
+							+ "VALUES (" + migration.version + ")");
+					return null;
+				}
+			});
+		}
+	}
+
+	private static int currentVersion(Dao<User, Integer> userDao)
+			throws SQLException {
+		GenericRawResults<String[]> results =
+				userDao.queryRaw("SELECT MAX(version) FROM schema_version");
+		try {
+			String[] row = results.getFirstResult();
+			return row == null || row[0] == null ? 0 : Integer.parseInt(row[0]);
+		} finally {
+			results.close();
+		}
+	}
+
+	static void addColumnIfMissing(Dao<User, Integer> userDao, String table,
+			String column, String type) throws SQLException {
+		GenericRawResults<String[]> results =
+				userDao.queryRaw("PRAGMA table_info(" + table + ")");
+		try {
+			for(String[] row : results) {
+				// cid, name, type, notnull, dflt_value, pk
+				if(column.equalsIgnoreCase(row[1]))
+					return;
+			}
+		} finally {
+			results.close();
+		}
+
+		userDao.executeRaw("ALTER TABLE `" + table + "` ADD COLUMN `"
+				+ column + "` " + type);
+	}
+
+	/**
+	 * Computes the phonetic keys of the existing users, in chunks of 
+	 * ascending ids.
+	 */
+	private static void fillPhoneticKeys(Dao<User, Integer> userDao)
+			throws SQLException {
+		int afterId = 0;
+		int filled = 0;
+		while(true) {
+			List<String[]> rows = new ArrayList<String[]>(FILL_CHUNK);
+			GenericRawResults<String[]> results = userDao.queryRaw(
+					"SELECT id, name, surname, nickname FROM users "
+					+ "WHERE id > " + afterId + " ORDER BY id LIMIT "
+					+ FILL_CHUNK);
+			try {
+				for(String[] row : results)
+					rows.add(row);
+			} finally {
+				results.close();
+			}
+			if(rows.isEmpty())
+				break;
+
+			for(String[] row : rows) {
+				userDao.updateRaw("UPDATE users SET name_phonetic = ?, "
+						+ "surname_phonetic = ?, nickname_phonetic = ? "
+						+ "WHERE id = ?",
+						PhoneticKeys.primary(row[1]),
+						PhoneticKeys.primary(row[2]),
+						PhoneticKeys.primary(row[3]), row[0]);
+			}
+			afterId = Integer.parseInt(rows.get(rows.size() - 1)[0]);
+			filled += rows.size();
+		}
+		LOG.info("Computed phonetic keys of {} users", filled);
+	}
+
+	private static boolean hasDuplicateSaids(Dao<User, Integer> userDao)
+			throws SQLException {
+		GenericRawResults<String[]> results = userDao.queryRaw(
+				"SELECT said FROM users GROUP BY said HAVING COUNT(*) > 1 "
+				+ "LIMIT 1");
+		try {
+			return results.getFirstResult() != null;
+		} finally {
+			results.close();
+		}
+	}
+
+}
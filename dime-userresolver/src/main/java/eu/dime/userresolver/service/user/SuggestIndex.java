@@ -0,0 +1,221 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prefix index for autocompletion. The name, surname and nickname of every
+ * user are split into normalized tokens (lower case, diacritics removed)
+ * which are kept in a sorted map, so all tokens starting with a prefix are
+ * one contiguous range. Suggestions are served from the user snapshots held
+ * here and never reach the {@link UserProvider}'s storage.
+ */
+public class SuggestIndex implements UserListener {
+	private static final Logger LOG =
+			LoggerFactory.getLogger(SuggestIndex.class);
+
+	private static final Pattern DIACRITICS =
+			Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+	private static final Pattern SEPARATORS =
+			Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	/** token -> saids of the users having that token */
+	private final ConcurrentSkipListMap<String, Set<String>> tokens =
+			new ConcurrentSkipListMap<String, Set<String>>();
+
+	/** said -> user as last seen by this index */
+	private final ConcurrentMap<String, User> users =
+			new ConcurrentHashMap<String, User>();
+
+	private final Object writeLock = new Object();
+
+	/**
+	 * Subscribes to the provider and loads its current users.
+	 */
+	public void setUserProvider(UserProvider userProvider) {
+		userProvider.addListener(this);
+
+		long start = System.currentTimeMillis();
+		try {
+			userProvider.visitAll(new UserVisitor() {
+				@Override
+				public void visit(User user) {
+					synchronized(writeLock) {
+						if(!users.containsKey(user.getSaid()))
+							index(user);
+					}
+				}
+			});
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to load users", e);
+		}
+		LOG.info("Loaded {} users for suggestions in {} ms",
+				users.size(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param prefix one or more space separated word prefixes; every prefix
+	 * 		has to match the start of a different word of the user
+	 * @param limit maximum number of users returned
+	 * @return users in the order of their first matching token
+	 */
+	public List<User> suggest(String prefix, int limit) {
+		List<String> prefixes = tokenize(prefix);
+		if(prefixes.isEmpty() || limit <= 0)
+			return new ArrayList<User>();
+
+		String first = prefixes.get(0);
+		ConcurrentNavigableMap<String, Set<String>> range =
+				tokens.subMap(first, true, first + Character.MAX_VALUE, false);
+
+		Set<String> seen = new LinkedHashSet<String>();
+		List<User> results = new ArrayList<User>();
+		for(Map.Entry<String, Set<String>> entry : range.entrySet()) {
+			for(String said : entry.getValue()) {
+				if(!seen.add(said))
+					continue;
+
+				User user = users.get(said);
+				if(user != null && matchesAll(user, prefixes)) {
+					results.add(user);
+					if(results.size() >= limit)
+						return results;
+				}
+			}
+		}
+		return results;
+	}
+
+	public int size() {
+		return users.size();
+	}
+
+	@Override
+	public void registered(User user) {
+		synchronized(writeLock) {
+			unindex(user.getSaid());
+			index(user);
+		}
+	}
+
+	@Override
+	public void updated(User user) {
+		registered(user);
+	}
+
+	@Override
+	public void removed(User user) {
+		synchronized(writeLock) {
+			unindex(user.getSaid());
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void index(User user) {
+		if(user.getSaid() == null)
+			return;
+
+		users.put(user.getSaid(), user);
+		for(String token : tokenize(user)) {
+			Set<String> saids = tokens.get(token);
+			if(saids == null) {
+				saids = Collections.newSetFromMap(
+						new ConcurrentHashMap<String, Boolean>());
+				tokens.put(token, saids);
+			}
+			saids.add(user.getSaid());
+		}
+	}
+
+	private void unindex(String said) {
+		User user = users.remove(said);
+		if(user == null)
+			return;
+
+		for(String token : tokenize(user)) {
+			Set<String> saids = tokens.get(token);
+			if(saids != null) {
+				saids.remove(said);
+				if(saids.isEmpty())
+					tokens.remove(token);
+			}
+		}
+	}
+
+	private static boolean matchesAll(User user, List<String> prefixes) {
+		if(prefixes.size() == 1)
+			return true;
+
+		List<String> remaining = tokenize(user);
+		for(String prefix : prefixes) {
+			boolean found = false;
+			for(int i = 0; i < remaining.size(); i++) {
+				if(remaining.get(i).startsWith(prefix)) {
+					remaining.remove(i);
+					found = true;
+					break;
+				}
+			}
+			if(!found)
+				return false;
+		}
+		return true;
+	}
+
+	private static List<String> tokenize(User user) {
+		List<String> result = new ArrayList<String>();
+		result.addAll(tokenize(user.getName()));
+		result.addAll(tokenize(user.getSurname()));
+		result.addAll(tokenize(user.getNickname()));
+		return result;
+	}
+
+	static List<String> tokenize(String value) {
+		List<String> result = new ArrayList<String>();
+		if(value == null)
+			return result;
+
+		for(String token : SEPARATORS.split(normalize(value))) {
+			if(token.length() > 0)
+				result.add(token);
+		}
+		return result;
+	}
+
+	static String normalize(String value) {
+		String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+		return DIACRITICS.matcher(decomposed).replaceAll("")
+				.toLowerCase(Locale.ENGLISH);
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory trigram inverted index over name, surname and nickname.
+ *
+ * Answers the substring query <code>LIKE '%query%'</code> with the same
+ * semantics as SQLite: ASCII letters match case-insensitively, every other
+ * character must match exactly and <code>NULL</code> columns never match.
+ * Queries containing the <code>LIKE</code> wildcards <code>%</code> or
+ * <code>_</code> are not supported, see {@link #supports(String)}.
+ */
+public class TrigramIndex implements UserListener {
+
+	private static final int GRAM = 3;
+
+	/** user id -> folded name, surname, nickname */
+	private final Map<Integer, String[]> documents =
+			new HashMap<Integer, String[]>();
+
+	/** trigram -> ids of the users containing it */
+	private final Map<String, Set<Integer>> postings =
+			new HashMap<String, Set<Integer>>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @return false if the query contains <code>LIKE</code> wildcards and
+	 * 		has to be answered by the database instead
+	 */
+	public static boolean supports(String query) {
+		return query.indexOf('%') < 0 && query.indexOf('_') < 0;
+	}
+
+	/**
+	 * @return ids of all users with a name, surname or nickname containing
+	 * 		the query, in ascending order
+	 */
+	public List<Integer> searchLike(String query) {
+		String needle = fold(query);
+
+		lock.readLock().lock();
+		try {
+			Set<Integer> candidates = needle.length() < GRAM ?
+					documents.keySet() : candidates(needle);
+
+			List<Integer> ids = new ArrayList<Integer>();
+			for(Integer id : candidates) {
+				String[] fields = documents.get(id);
+				for(String field : fields) {
+					if(field != null && field.contains(needle)) {
+						ids.add(id);
+						break;
+					}
+				}
+			}
+			Collections.sort(ids);
+			return ids;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void add(User user) {
+		String[] fields = new String[] {
+				foldNullable(user.getName()),
+				foldNullable(user.getSurname()),
+				foldNullable(user.getNickname())
+		};
+		Integer id = user.getId();
+
+		lock.writeLock().lock();
+		try {
+			unindex(id);
+			documents.put(id, fields);
+			for(String gram : grams(fields)) {
+				Set<Integer> ids = postings.get(gram);
+				if(ids == null) {
+					ids = new HashSet<Integer>();
+					postings.put(gram, ids);
+				}
+				ids.add(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(User user) {
+		lock.writeLock().lock();
+		try {
+			unindex(user.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			documents.clear();
+			postings.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void registered(User user) {
+		add(user);
+	}
+
+	@Override
+	public void updated(User user) {
+		add(user);
+	}
+
+	@Override
+	public void removed(User user) {
+		remove(user);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private Set<Integer> candidates(String needle) {
+		List<Set<Integer>> lists = new ArrayList<Set<Integer>>();
+		for(String gram : grams(new String[] { needle })) {
+			Set<Integer> ids = postings.get(gram);
+			if(ids == null)
+				return Collections.emptySet();
+			lists.add(ids);
+		}
+
+		Set<Integer> smallest = lists.get(0);
+		for(Set<Integer> ids : lists) {
+			if(ids.size() < smallest.size())
+				smallest = ids;
+		}
+
+		Set<Integer> result = new HashSet<Integer>();
+		for(Integer id : smallest) {
+			boolean inAll = true;
+			for(Set<Integer> ids : lists) {
+				if(ids != smallest && !ids.contains(id)) {
+					inAll = false;
+					break;
+				}
+			}
+			if(inAll)
+				result.add(id);
+		}
+		return result;
+	}
+
+	private void unindex(Integer id) {
+		String[] fields = documents.remove(id);
+		if(fields == null)
+			return;
+
+		for(String gram : grams(fields)) {
+			Set<Integer> ids = postings.get(gram);
+			if(ids != null) {
+				ids.remove(id);
+				if(ids.isEmpty())
+					postings.remove(gram);
+			}
+		}
+	}
+
+	private static Set<String> grams(String[] fields) {
+		Set<String> grams = new HashSet<String>();
+		for(String field : fields) {
+			if(field == null)
+				continue;
+			for(int i = 0; i + GRAM <= field.length(); i++)
+				grams.add(field.substring(i, i + GRAM));
+		}
+		return grams;
+	}
+
+	private static String foldNullable(String value) {
+		return value == null ? null : fold(value);
+	}
+
+	/**
+	 * Lower-cases ASCII letters only, like SQLite's built-in
+	 * <code>LIKE</code>.
+	 */
+	static String fold(String value) {
+		char[] chars = null;
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c >= 'A' && c <= 'Z') {
+				if(chars == null)
+					chars = value.toCharArray();
+				chars[i] = (char) (c + ('a' - 'A'));
+			}
+		}
+		return chars == null ? value : new String(chars);
+	}
+
+}
@@ -39,6 +39,17 @@ public class User {
 	@DatabaseField
 	private String said;
 	
+	/* Double Metaphone keys for fuzzy search */
+	@JsonIgnore
+	@DatabaseField(columnName = "name_phonetic")
+	private String namePhonetic;
+	@JsonIgnore
+	@DatabaseField(columnName = "surname_phonetic")
+	private String surnamePhonetic;
+	@JsonIgnore
+	@DatabaseField(columnName = "nickname_phonetic")
+	private String nicknamePhonetic;
+	
 	public int getId() {
 		return id;
 	}
@@ -82,6 +93,27 @@ public class User {
 		this.said = said;
 	}
 	
+	public String getNamePhonetic() {
+		return namePhonetic;
+	}
+	public void setNamePhonetic(String namePhonetic) {
+		this.namePhonetic = namePhonetic;
+	}
+	
+	public String getSurnamePhonetic() {
+		return surnamePhonetic;
+	}
+	public void setSurnamePhonetic(String surnamePhonetic) {
+		this.surnamePhonetic = surnamePhonetic;
+	}
+	
+	public String getNicknamePhonetic() {
+		return nicknamePhonetic;
+	}
+	public void setNicknamePhonetic(String nicknamePhonetic) {
+		this.nicknamePhonetic = nicknamePhonetic;
+	}
+	
 	public User() {}
 	
 	public User(String said, String name, String surname, String nickname) {
@@ -0,0 +1,103 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * One page of a keyset paginated search. Results are ordered by user id;
+ * the cursor is an opaque token for "after the last user of this page".
+ */
+public class UserPage {
+
+	private static final String CURSOR_PREFIX = "id:";
+
+	private final List<User> users;
+	private final String next;
+
+	public UserPage(List<User> users, String next) {
+		this.users = users;
+		this.next = next;
+	}
+
+	public List<User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * @return cursor of the following page or <code>null</code> if this is
+	 * 		the last one
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	/**
+	 * Builds a page from up to <code>limit + 1</code> users fetched after
+	 * the cursor; the extra user only signals that there is a next page.
+	 */
+	public static UserPage of(List<User> fetched, int limit) {
+		if(fetched.size() <= limit)
+			return new UserPage(fetched, null);
+
+		List<User> users = new ArrayList<User>(fetched.subList(0, limit));
+		return new UserPage(users, encodeCursor(users.get(limit - 1).getId()));
+	}
+
+	/**
+	 * Pages an already complete result list that is ordered by id.
+	 */
+	public static UserPage slice(List<User> all, String cursor, int limit) {
+		int afterId = decodeCursor(cursor);
+
+		List<User> fetched = new ArrayList<User>();
+		for(User user : all) {
+			if(user.getId() > afterId) {
+				fetched.add(user);
+				if(fetched.size() > limit)
+					break;
+			}
+		}
+		return of(fetched, limit);
+	}
+
+	public static String encodeCursor(int lastId) {
+		return Base64.encodeBase64URLSafeString(
+				(CURSOR_PREFIX + lastId).getBytes());
+	}
+
+	/**
+	 * @return the id after which the page starts, 0 for a <code>null</code>
+	 * 		cursor
+	 * @throws IllegalArgumentException if the cursor is malformed
+	 */
+	public static int decodeCursor(String cursor) {
+		if(cursor == null || cursor.length() == 0)
+			return 0;
+
+		String decoded = new String(Base64.decodeBase64(cursor));
+		if(!decoded.startsWith(CURSOR_PREFIX))
+			throw new IllegalArgumentException("Invalid cursor");
+		try {
+			return Integer.parseInt(decoded.substring(CURSOR_PREFIX.length()));
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+	}
+
+}
@@ -14,19 +14,58 @@
 
 package eu.dime.userresolver.service.user;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 public interface UserProvider {
 	public User register(User user);
 	
+	/*
+	 * Registers all users in one batch. Returns one entry per user, in 
+	 * order: null if the user was registered, the error message otherwise.
+	 */
+	public List<String> registerAll(List<User> users);
+	
 	public List<User> search(String name, String surname, String nickname);
 	public List<User> searchAll(String query);
 	public List<User> searchAllLike(String query);
 	
+	/*
+	 * Keyset paginated variants, ordered by id. The cursor is taken from 
+	 * UserPage.getNext() of the previous page, null for the first one.
+	 */
+	public UserPage search(String name, String surname, String nickname,
+			String cursor, int limit);
+	public UserPage searchAll(String query, String cursor, int limit);
+	public UserPage searchAllLike(String query, String cursor, int limit);
+	
+	/*
+	 * Users with a name, surname or nickname within maxDistance edits 
+	 * (case-insensitive, at most FuzzyIndex.MAX_DISTANCE) of the query or 
+	 * sounding like it, keyset paginated like the searches above.
+	 */
+	public UserPage searchFuzzy(String query, int maxDistance, String cursor, 
+			int limit);
+	
+	/*
+	 * Streams every user, ordered by id, to the visitor without loading 
+	 * the whole registry.
+	 */
+	public void visitAll(UserVisitor visitor) throws IOException;
+	
 	public User getBySaid(String said);
 	
+	/*
+	 * Resolves many saids at once. Returns the users found, in the order of 
+	 * the given saids; unknown saids are left out.
+	 */
+	public List<User> getBySaids(Collection<String> saids);
+	
 	public User update(String said, String name, String surname, String nickname);
 	
 	public User remove(String said);
+	
+	public void addListener(UserListener listener);
 
 }
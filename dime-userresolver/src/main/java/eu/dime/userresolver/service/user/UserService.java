@@ -14,7 +14,14 @@
 
 package eu.dime.userresolver.service.user;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -24,10 +31,25 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.RandomStringUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.type.TypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +66,7 @@ public class UserService {
 		@SuppressWarnings("unused")
 		public String version = apiVersion;
 		public List<User> result;
+		public String next;
 	}
 	
 	private class RegisterResponse {
@@ -53,6 +76,26 @@ public class UserService {
 		public String key;
 	}
 	
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	private class BulkEntry {
+		@SuppressWarnings("unused")
+		public String said;
+		public String key;
+		public String error;
+		
+		public BulkEntry(String said) {
+			this.said = said;
+		}
+	}
+	
+	@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+	private class BulkResponse {
+		@SuppressWarnings("unused")
+		public String version = apiVersion;
+		public List<BulkEntry> result = new ArrayList<BulkEntry>();
+		public String error;
+	}
+	
 	private class ErrorResponse {
 		@SuppressWarnings("unused")
 		public String version = apiVersion;
@@ -67,20 +110,73 @@ public class UserService {
 	
 	private static final String apiVersion = "0.1";
 	
+	private static final int DEFAULT_PAGE_LIMIT = 100;
+	private static final int MAX_PAGE_LIMIT = 1000;
+	
+	private static final int DEFAULT_SUGGEST_LIMIT = 10;
+	private static final int MAX_SUGGEST_LIMIT = 100;
+	
+	private static final int MAX_LOOKUP_SAIDS = 1000;
+	
+	private static final ObjectMapper MAPPER = new ObjectMapper().configure(
+			SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+	
 	private UserProvider userProvider;
+	private SuggestIndex suggestIndex;
+	private RegistryVersion registryVersion;
+	
+	private int bulkChunkSize = 500;
 	
 	public void setUserProvider(UserProvider userManager) {
 		this.userProvider = userManager;
 	}
 	
+	public void setSuggestIndex(SuggestIndex suggestIndex) {
+		this.suggestIndex = suggestIndex;
+	}
+	
+	/**
+	 * Enables conditional GET on the registry listing and search.
+	 */
+	public void setRegistryVersion(RegistryVersion registryVersion) {
+		this.registryVersion = registryVersion;
+	}
+	
+	/**
+	 * Number of users committed per transaction by bulk registration.
+	 */
+	public void setBulkChunkSize(int bulkChunkSize) {
+		this.bulkChunkSize = bulkChunkSize;
+	}
+	
 	
+	/**
+	 * http://[url]/?limit=[limit]&cursor=[cursor]
+	 * 
+	 * Lists the registry page by page. Pass the "next" value of a response 
+	 * as cursor to get the following page; it is null on the last page.
+	 */
 	@GET
 	@Produces ("application/json")
-	public Response users() {
-		SearchResponse userResponse = new SearchResponse();
-		userResponse.result = userProvider.search(null, null, null);
+	public Response users(
+			@QueryParam("limit") Integer limit,
+			@QueryParam("cursor") String cursor,
+			@Context Request request,
+			@Context HttpHeaders headers) {
+		RegistryVersion.State version = currentVersion();
+		ResponseBuilder notModified = evaluatePreconditions(request, headers, version);
+		if(notModified != null)
+			return notModified.build();
 		
-		return Response.ok(userResponse).build();
+		try {
+			UserPage page = userProvider.search(
+					null, null, null, cursor, pageLimit(limit));
+			
+			return withVersion(Response.ok(toResponse(page)), version).build();
+		} catch(IllegalArgumentException e) {
+			return Response.ok(
+					new ErrorResponse(e.getMessage())).status(400).build();
+		}
 	}
 		
 	/**
@@ -136,8 +232,120 @@ public class UserService {
 	}
 	
 	
+	/**
+	 * http://[url]/bulk/register
+	 * 
+	 * Body: a JSON array of users or newline delimited JSON, one user per 
+	 * line, e.g. { said: "SAID", name: "NAME", surname: "SURNAME", 
+	 * nickname: "NICKNAME" }. Users are committed in chunks.
+	 * 
+	 * {
+	 *	version: "0.1",
+	 *	result: [
+	 *		{ said: "SAID", key: "KEY" },
+	 *		{ said: "SAID", error: "User exists" },
+	 *	...
+	 *	]
+	 * }
+	 * 
+	 * A malformed body is answered with 400 and an error, along with the 
+	 * results of the chunks committed before it; the users after the last 
+	 * committed chunk are not registered.
+	 */
+	@POST
+	@Path("/bulk/register")
+	@Consumes({"application/json", "application/x-ndjson"})
+	@Produces ("application/json")
+	public Response registerBulk(InputStream body) {
+		BulkResponse response = new BulkResponse();
+		
+		List<User> chunk = new ArrayList<User>(bulkChunkSize);
+		List<BulkEntry> entries = new ArrayList<BulkEntry>(bulkChunkSize);
+		try {
+			JsonParser parser = MAPPER.getJsonFactory().createJsonParser(body);
+			
+			JsonToken token = parser.nextToken();
+			boolean array = token == JsonToken.START_ARRAY;
+			if(array)
+				token = parser.nextToken();
+			
+			while(token != null && token != JsonToken.END_ARRAY) {
+				if(token != JsonToken.START_OBJECT)
+					return bulkError(response, "Expected user object");
+				
+				Map<String, String> fields = MAPPER.readValue(
+						parser, new TypeReference<Map<String, String>>() {});
+				
+				User user = new User(fields.get("said"), fields.get("name"), 
+						fields.get("surname"), fields.get("nickname"));
+				BulkEntry entry = new BulkEntry(user.getSaid());
+				entry.key = RandomStringUtils.randomAlphanumeric(20);
+				user.setKey(DigestUtils.sha256Hex(entry.key));
+				
+				chunk.add(user);
+				entries.add(entry);
+				if(chunk.size() >= bulkChunkSize)
+					registerChunk(chunk, entries, response);
+				
+				token = parser.nextToken();
+			}
+			registerChunk(chunk, entries, response);
+		} catch(IOException e) {
+			LOG.info("Unable to read bulk registration", e);
+			return bulkError(response, 
+					"Invalid request body - " + e.getMessage());
+		}
+		
+		LOG.info("Bulk registration of {} users", response.result.size());
+		
+		return Response.ok(response).build();
+	}
+	
+	/**
+	 * Keeps the results of the committed chunks, their keys are not shown 
+	 * again.
+	 */
+	private static Response bulkError(BulkResponse response, String error) {
+		LOG.info("Bulk registration of {} users stopped: {}", 
+				response.result.size(), error);
+		response.error = error;
+		return Response.ok(response).status(400).build();
+	}
+	
+	private void registerChunk(List<User> chunk, List<BulkEntry> entries, 
+			BulkResponse response) {
+		if(chunk.isEmpty())
+			return;
+		
+		List<String> errors;
+		try {
+			errors = userProvider.registerAll(chunk);
+		} catch(IllegalStateException e) {
+			errors = Collections.nCopies(chunk.size(), e.getMessage());
+		}
+		
+		for(int i = 0; i < entries.size(); i++) {
+			BulkEntry entry = entries.get(i);
+			if(errors.get(i) != null) {
+				entry.key = null;
+				entry.error = errors.get(i);
+			}
+			response.result.add(entry);
+		}
+		chunk.clear();
+		entries.clear();
+	}
+	
 	/**
 	 *  http://[url]/search?name=[name]&surname=[surname]&nickname=[nickname]
+	 *  	&limit=[limit]&cursor=[cursor]
+	 *  http://[url]/search?fuzzy=[query]&distance=[0..2]&limit=[limit]
+	 *  	&cursor=[cursor]
+	 *  
+	 *  A fuzzy search finds names within the edit distance of the query 
+	 *  or sounding like it. Without a distance, queries of up to two 
+	 *  characters have to match exactly, up to five may be one edit away 
+	 *  and longer ones two.
 	 *  
 	 *  {
      *		version: "0.1",
@@ -153,7 +361,8 @@ public class UserService {
      *     		said: "SAID"
      *   	},
      *   ...
-     *		]
+     *		],
+     *		next: "CURSOR"
 	 *	}
 	 * 
 	 * 
@@ -166,23 +375,221 @@ public class UserService {
 			@QueryParam("string") String all,
 			@QueryParam("name") String name,
 			@QueryParam("surname") String surname,
-			@QueryParam("nickname") String nickname) {
+			@QueryParam("nickname") String nickname,
+			@QueryParam("fuzzy") String fuzzy,
+			@QueryParam("distance") Integer distance,
+			@QueryParam("limit") Integer limit,
+			@QueryParam("cursor") String cursor,
+			@Context Request request,
+			@Context HttpHeaders headers) {
 		
+		RegistryVersion.State version = currentVersion();
+		ResponseBuilder notModified = evaluatePreconditions(request, headers, version);
+		if(notModified != null)
+			return notModified.build();
+		
+		UserPage page;
+		try {
+			if(like != null) {
+				LOG.info("Catch all search request: {}", like);
+				
+				page = userProvider.searchAllLike(
+						like, cursor, pageLimit(limit));
+			} else if(all != null) {
+				LOG.info("Catch all search request: {}", all);
+				
+				page = userProvider.searchAll(all, cursor, pageLimit(limit));
+			} else if(fuzzy != null) {
+				LOG.info("Fuzzy search request: {} within {}", fuzzy, distance);
+				
+				page = userProvider.searchFuzzy(fuzzy, 
+						fuzzyDistance(fuzzy, distance), cursor, 
+						pageLimit(limit));
+			} else {
+				LOG.info("Search request: {} , {} , {}", 
+					new Object[]{name, surname, nickname});
+				
+				page = userProvider.search(
+						name, surname, nickname, cursor, pageLimit(limit));
+			}
+		} catch(IllegalArgumentException e) {
+			return Response.ok(
+					new ErrorResponse(e.getMessage())).status(400).build();
+		}
+		
+		return withVersion(Response.ok(toResponse(page)), version).build();
+	}
+	
+	/*
+	 * The version is read before the query runs: a change made meanwhile 
+	 * leaves the response with the older tag, which the next request then 
+	 * fails to match.
+	 */
+	private RegistryVersion.State currentVersion() {
+		return registryVersion == null ? null : registryVersion.current();
+	}
+	
+	/**
+	 * @return a 304 response if the client's copy is still current, null 
+	 * 		if the request has to be answered
+	 */
+	private static ResponseBuilder evaluatePreconditions(Request request, 
+			HttpHeaders headers, RegistryVersion.State version) {
+		if(version == null || request == null)
+			return null;
+		
+		// the combined check of CXF only answers if tag and date both match,
+		// a client sending just one of them would never get a 304
+		ResponseBuilder builder = request.evaluatePreconditions(version.tag);
+		// a date is only considered without a tag (RFC 7232, 3.3)
+		if(builder == null && (headers == null 
+				|| headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH) == null))
+			builder = request.evaluatePreconditions(new Date(version.modified));
+		return builder == null ? null : withVersion(builder, version);
+	}
+	
+	private static ResponseBuilder withVersion(ResponseBuilder builder, 
+			RegistryVersion.State version) {
+		if(version == null)
+			return builder;
+		
+		// caches have to check back, the registry may change any time
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoCache(true);
+		builder.tag(version.tag).cacheControl(cacheControl);
+		
+		// dates have a resolution of one second; within the current second 
+		// a later change could get the same date
+		if(System.currentTimeMillis() / 1000 * 1000 > version.modified)
+			builder.lastModified(new Date(version.modified));
+		return builder;
+	}
+	
+	private int pageLimit(Integer limit) {
+		if(limit == null)
+			return DEFAULT_PAGE_LIMIT;
+		return Math.max(1, Math.min(limit, MAX_PAGE_LIMIT));
+	}
+	
+	private static int fuzzyDistance(String query, Integer distance) {
+		if(distance != null)
+			return distance;
+		return query.length() <= 2 ? 0 : (query.length() <= 5 ? 1 : 2);
+	}
+	
+	private SearchResponse toResponse(UserPage page) {
 		SearchResponse response = new SearchResponse();
+		response.result = page.getUsers();
+		response.next = page.getNext();
+		return response;
+	}
+	
+	/**
+	 *  http://[url]/export
+	 *  
+	 *  The whole registry in the search response format. Users are written 
+	 *  while they are read from the provider, so memory use does not 
+	 *  depend on the registry size.
+	 */
+	@GET
+	@Path("/export")
+	@Produces ("application/json")
+	public Response export() {
+		StreamingOutput stream = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) 
+					throws IOException, WebApplicationException {
+				final JsonGenerator generator = MAPPER.getJsonFactory()
+						.createJsonGenerator(output, JsonEncoding.UTF8);
+				
+				generator.writeStartObject();
+				generator.writeStringField("version", apiVersion);
+				generator.writeArrayFieldStart("result");
+				
+				userProvider.visitAll(new UserVisitor() {
+					@Override
+					public void visit(User user) throws IOException {
+						MAPPER.writeValue(generator, user);
+					}
+				});
+				
+				generator.writeEndArray();
+				generator.writeEndObject();
+				generator.close();
+			}
+		};
 		
-		if(like != null) {
-			LOG.info("Catch all search request: {}", all);
-			
-			response.result = userProvider.searchAllLike(like);
-		} else if(all != null) {
-			LOG.info("Catch all search request: {}", all);
-			
-			response.result = userProvider.searchAll(all);
-		} else {
-			LOG.info("Search request: {} , {} , {}", 
-				new Object[]{name, surname, nickname});
-			
-			response.result = userProvider.search(name, surname, nickname);
+		return Response.ok(stream).build();
+	}
+	
+	/**
+	 *  http://[url]/suggest?prefix=[prefix]&limit=[limit]
+	 *  
+	 *  Autocompletion for "find people" fields. Every word of the prefix 
+	 *  has to match the start of a name, surname or nickname word. Answered 
+	 *  from memory, the same response format as search is used.
+	 */
+	@GET
+	@Path("/suggest")
+	@Produces ("application/json")
+	public Response suggest(
+			@QueryParam("prefix") String prefix,
+			@QueryParam("limit") Integer limit) {
+		
+		if(suggestIndex == null)
+			return Response.ok(new ErrorResponse(
+					"Suggestions not available")).status(
+							Response.Status.NOT_FOUND).build();
+		
+		if(prefix == null)
+			return Response.ok(
+					new ErrorResponse("Missing prefix")).status(400).build();
+		
+		int max = limit == null ? DEFAULT_SUGGEST_LIMIT : 
+			Math.max(0, Math.min(limit, MAX_SUGGEST_LIMIT));
+		
+		SearchResponse response = new SearchResponse();
+		response.result = suggestIndex.suggest(prefix, max);
+		
+		return Response.ok(response).build();
+	}
+	
+	/**
+	 * http://[url]/lookup
+	 * 
+	 * Resolves a JSON array of saids, e.g. ["SAID1", "SAID2"], in one 
+	 * request. The result holds the users found, in the order of the saids; 
+	 * unknown saids are left out.
+	 */
+	@POST
+	@Path("/lookup")
+	@Consumes("application/json")
+	@Produces ("application/json")
+	public Response lookup(InputStream body) {
+		List<String> saids;
+		try {
+			saids = MAPPER.readValue(body, new TypeReference<List<String>>() {});
+		} catch(IOException e) {
+			LOG.info("Unable to read lookup", e);
+			return Response.ok(new ErrorResponse(
+					"Invalid request body - " + e.getMessage())).status(
+							400).build();
+		}
+		
+		if(saids == null)
+			return Response.ok(
+					new ErrorResponse("Missing saids")).status(400).build();
+		if(saids.size() > MAX_LOOKUP_SAIDS)
+			return Response.ok(new ErrorResponse(
+					"At most " + MAX_LOOKUP_SAIDS + " saids per lookup")).status(
+							400).build();
+		
+		SearchResponse response = new SearchResponse();
+		try {
+			response.result = userProvider.getBySaids(saids);
+		} catch(IllegalStateException e) {
+			return Response.ok(new ErrorResponse(e.getMessage())).status(
+					Response.Status.INTERNAL_SERVER_ERROR).build();
 		}
 		
 		return Response.ok(response).build();
@@ -0,0 +1,136 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size- and time-bounded LRU map. Entries older than the time to live are
+ * treated as absent; the least recently used entry is dropped once the
+ * maximum size is exceeded. A time to live of zero or less disables expiry.
+ */
+public class ExpiringLruCache<K, V> {
+
+	private static class Entry<V> {
+		final V value;
+		final long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxSize;
+	private final long ttlMillis;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	public ExpiringLruCache(final int maxSize, long ttlMillis) {
+		if(maxSize < 1)
+			throw new IllegalArgumentException("Cache size must be positive");
+
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<K, ExpiringLruCache.Entry<V>> eldest) {
+				if(size() > ExpiringLruCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public V get(K key) {
+		synchronized(entries) {
+			Entry<V> entry = entries.get(key);
+			if(entry != null && !isExpired(entry)) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if(entry != null) {
+				entries.remove(key);
+				evictions.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(K key, V value) {
+		long expires = ttlMillis > 0 ?
+				System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+		synchronized(entries) {
+			entries.put(key, new Entry<V>(value, expires));
+		}
+	}
+
+	public V remove(K key) {
+		synchronized(entries) {
+			Entry<V> entry = entries.remove(key);
+			return entry == null ? null : entry.value;
+		}
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private boolean isExpired(Entry<V> entry) {
+		return entry.expires < System.currentTimeMillis();
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.oauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Reopening, compaction and damaged files of the {@link MappedRecordStore}.
+ */
+public class MappedRecordStoreTest extends TestCase {
+
+	private static final int INITIAL_SIZE = 4096;
+	private static final long HOUR = 3600000L;
+
+	private File file;
+	private MappedRecordStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("records", ".dat");
+		file.delete();
+		store = new MappedRecordStore(file, INITIAL_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+
+	public void testRestoresOnReopen() throws Exception {
+		long later = System.currentTimeMillis() + HOUR;
+		store.put("a", later, bytes("first"));
+		store.put("b", later, bytes("second"));
+		store.put("a", later, bytes("third"));
+		store.put("c", later, bytes("removed"));
+		store.remove("c");
+		store.put("d", System.currentTimeMillis() - 1, bytes("expired"));
+
+		reopen();
+
+		assertEquals(2, store.size());
+		assertEquals("third", string(store.get("a")));
+		assertEquals("second", string(store.get("b")));
+		assertNull(store.get("c"));
+		assertNull(store.get("d"));
+	}
+
+	public void testGrowsBeyondInitialSize() throws Exception {
+		long later = System.currentTimeMillis() + HOUR;
+		byte[] value = new byte[1000];
+		for(int i = 0; i < 20; i++) {
+			Arrays.fill(value, (byte) i);
+			store.put("key-" + i, later, value);
+		}
+		assertTrue(store.getFileSize() > INITIAL_SIZE);
+
+		reopen();
+
+		assertEquals(20, store.size());
+		for(int i = 0; i < 20; i++) {
+			Arrays.fill(value, (byte) i);
+			assertTrue(Arrays.equals(value, store.get("key-" + i)));
+		}
+	}
+
+	public void testCompactionKeepsLiveRecords() throws Exception {
+		long later = System.currentTimeMillis() + HOUR;
+		for(int round = 0; round < 20; round++) {
+			for(int i = 0; i < 10; i++)
+				store.put("key-" + i, later, bytes("value-" + round + "-" + i));
+		}
+		store.put("gone", later, bytes("gone"));
+		store.remove("gone");
+		long live = store.getLiveBytes();
+
+		assertTrue(store.compactIfNeeded());
+		assertFalse(store.compactIfNeeded());
+		assertEquals(live, store.getLiveBytes());
+		assertFalse(new File(file.getPath() + ".compact").exists());
+
+		assertEquals(10, store.size());
+		for(int i = 0; i < 10; i++)
+			assertEquals("value-19-" + i, string(store.get("key-" + i)));
+
+		// writes after the compaction go to the new file
+		store.put("key-0", later, bytes("after"));
+		reopen();
+
+		assertEquals(10, store.size());
+		assertEquals("after", string(store.get("key-0")));
+		assertEquals("value-19-9", string(store.get("key-9")));
+		assertNull(store.get("gone"));
+	}
+
+	public void testSweepDropsExpiredKeys() throws Exception {
+		long now = System.currentTimeMillis();
+		store.put("live", now + HOUR, bytes("live"));
+		store.put("expired", now - 1, bytes("expired"));
+
+		assertEquals(1, store.sweep());
+		assertEquals(1, store.size());
+		assertEquals("live", string(store.get("live")));
+	}
+
+	public void testIgnoresRecordWithoutLength() throws Exception {
+		long later = System.currentTimeMillis() + HOUR;
+		store.put("a", later, bytes("kept"));
+		store.close();
+
+		// a record written up to its length when the process died
+		int end = end(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(end + 4);
+		raf.write(new byte[] { 1, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f });
+		raf.close();
+
+		store = new MappedRecordStore(file, INITIAL_SIZE);
+		assertEquals(1, store.size());
+		assertEquals("kept", string(store.get("a")));
+
+		// the torn record is overwritten
+		store.put("b", later, bytes("next"));
+		reopen();
+		assertEquals(2, store.size());
+		assertEquals("next", string(store.get("b")));
+	}
+
+	public void testStopsAtLengthBeyondFile() throws Exception {
+		long later = System.currentTimeMillis() + HOUR;
+		store.put("a", later, bytes("kept"));
+		store.close();
+
+		int end = end(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(end);
+		raf.writeInt(Integer.MAX_VALUE - 8);
+		raf.close();
+
+		store = new MappedRecordStore(file, INITIAL_SIZE);
+		assertEquals(1, store.size());
+		assertEquals("kept", string(store.get("a")));
+	}
+
+	public void testRejectsForeignFile() throws Exception {
+		store.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.writeInt(0x12345678);
+		raf.close();
+
+		try {
+			store = new MappedRecordStore(file, INITIAL_SIZE);
+			fail("foreign file opened");
+		} catch(IOException expected) {
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void reopen() throws IOException {
+		store.close();
+		store = new MappedRecordStore(file, INITIAL_SIZE);
+	}
+
+	/**
+	 * @return position after the last complete record of the file
+	 */
+	private static int end(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			int position = 8;
+			while(position + 4 <= raf.length()) {
+				raf.seek(position);
+				int length = raf.readInt();
+				if(length <= 0)
+					break;
+				position += 4 + length;
+			}
+			return position;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] bytes(String value) throws IOException {
+		return value.getBytes("UTF-8");
+	}
+
+	private static String string(byte[] value) throws IOException {
+		return value == null ? null : new String(value, "UTF-8");
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.replication;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import eu.dime.userresolver.service.user.User;
+
+/**
+ * Sequence numbers and the ring of the {@link ChangeLog}, and the checks of
+ * {@link ReplicationService#changes(Long, Long, Integer, Integer)}.
+ */
+public class ChangeLogTest extends TestCase {
+
+	private ChangeLog changeLog;
+
+	@Override
+	protected void setUp() {
+		changeLog = new ChangeLog();
+		changeLog.setCapacity(5);
+	}
+
+	public void testNumbersChangesWithoutGaps() throws Exception {
+		changeLog.registered(user(1));
+		changeLog.updated(user(1));
+		changeLog.removed(user(1));
+
+		List<Change> changes = changeLog.since(0, 10, 0);
+		assertEquals(3, changes.size());
+		assertEquals(1, changes.get(0).seq);
+		assertEquals(Change.REGISTERED, changes.get(0).type);
+		assertEquals(Change.UPDATED, changes.get(1).type);
+		assertEquals(Change.REMOVED, changes.get(2).type);
+		assertNull(changes.get(2).name);
+		assertEquals(3, changeLog.getLast());
+	}
+
+	public void testKeepsTheLastChangesAfterWrapping() throws Exception {
+		for(int i = 1; i <= 12; i++)
+			changeLog.registered(user(i));
+
+		List<Change> changes = changeLog.since(7, 10, 0);
+		assertEquals(5, changes.size());
+		for(int i = 0; i < 5; i++) {
+			assertEquals(8 + i, changes.get(i).seq);
+			assertEquals("said-" + (8 + i), changes.get(i).said);
+		}
+
+		try {
+			changeLog.since(6, 10, 0);
+			fail("overwritten changes returned");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	public void testLimitsChanges() throws Exception {
+		for(int i = 1; i <= 4; i++)
+			changeLog.registered(user(i));
+
+		List<Change> changes = changeLog.since(1, 2, 0);
+		assertEquals(2, changes.size());
+		assertEquals(2, changes.get(0).seq);
+		assertEquals(3, changes.get(1).seq);
+	}
+
+	public void testResizeKeepsRecentChanges() throws Exception {
+		for(int i = 1; i <= 8; i++)
+			changeLog.registered(user(i));
+		changeLog.setCapacity(3);
+		changeLog.registered(user(9));
+
+		List<Change> changes = changeLog.since(6, 10, 0);
+		assertEquals(3, changes.size());
+		assertEquals(7, changes.get(0).seq);
+		assertEquals(9, changes.get(2).seq);
+		try {
+			changeLog.since(5, 10, 0);
+			fail("dropped changes returned");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	public void testRejectsUnknownSequenceNumbers() throws Exception {
+		changeLog.registered(user(1));
+		try {
+			changeLog.since(-1, 10, 0);
+			fail("negative sequence number accepted");
+		} catch(IllegalArgumentException expected) {
+		}
+		try {
+			changeLog.since(2, 10, 0);
+			fail("future sequence number accepted");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	public void testWaitsForTheNextChange() throws Exception {
+		assertTrue(changeLog.since(0, 10, 0).isEmpty());
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch(InterruptedException e) {
+					return;
+				}
+				changeLog.registered(user(1));
+			}
+		};
+		writer.start();
+
+		List<Change> changes = changeLog.since(0, 10, 10000);
+		writer.join();
+		assertEquals(1, changes.size());
+		assertEquals(1, changes.get(0).seq);
+	}
+
+	public void testServiceRejectsNegativeSince() {
+		ReplicationService service = new ReplicationService();
+		service.setChangeLog(changeLog);
+		changeLog.registered(user(1));
+
+		assertEquals(400, service.changes(-1L, null, null, null).getStatus());
+		assertEquals(400, service.changes(null, null, null, null).getStatus());
+		assertEquals(410, service.changes(5L, null, null, null).getStatus());
+		assertEquals(410, service.changes(0L, changeLog.getEpoch() + 1,
+				null, null).getStatus());
+		assertEquals(200, service.changes(0L, changeLog.getEpoch(),
+				null, null).getStatus());
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private static User user(int id) {
+		User user = new User("said-" + id, "name" + id, "surname" + id, null);
+		user.setId(id);
+		user.setKey("hash-" + id);
+		return user;
+	}
+
+}
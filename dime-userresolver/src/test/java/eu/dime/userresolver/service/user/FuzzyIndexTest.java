@@ -0,0 +1,211 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link FuzzyIndex#search(String, int)} with the Levenshtein
+ * distance of every term computed one by one.
+ */
+public class FuzzyIndexTest extends TestCase {
+
+	/** few letters, so that random queries are close to many terms */
+	private static final String ALPHABET = "abcdAB";
+
+	public void testMatchesBruteForceOnRandomTerms() {
+		Random random = new Random(7);
+		FuzzyIndex index = new FuzzyIndex();
+		Map<String, User> users = new HashMap<String, User>();
+		for(int i = 0; i < 300; i++) {
+			User user = user(random, "said-" + i);
+			index.registered(user);
+			users.put(user.getSaid(), user);
+		}
+
+		assertMatchesBruteForce(random, index, users.values());
+	}
+
+	public void testMatchesBruteForceAfterUpdatesAndRemovals() {
+		Random random = new Random(11);
+		FuzzyIndex index = new FuzzyIndex();
+		Map<String, User> users = new HashMap<String, User>();
+		for(int i = 0; i < 300; i++) {
+			User user = user(random, "said-" + i);
+			index.registered(user);
+			users.put(user.getSaid(), user);
+		}
+		for(int i = 0; i < 400; i++) {
+			String said = "said-" + random.nextInt(300);
+			if(!users.containsKey(said)) {
+				User user = user(random, said);
+				index.registered(user);
+				users.put(said, user);
+			} else if(random.nextBoolean()) {
+				User user = user(random, said);
+				index.updated(user);
+				users.put(said, user);
+			} else {
+				index.removed(users.remove(said));
+			}
+		}
+
+		assertMatchesBruteForce(random, index, users.values());
+	}
+
+	public void testKeepsSpellingsOfATerm() {
+		FuzzyIndex index = new FuzzyIndex();
+		index.registered(new User("1", "Anna", "Meyer", null));
+		index.registered(new User("2", "ANNA", "Meier", null));
+		index.updated(new User("2", "ANNA", "Maier", null));
+
+		assertEquals(3, index.size());
+		assertEquals(new HashSet<String>(Arrays.asList("Anna", "ANNA")),
+				new HashSet<String>(index.search("anna", 0)));
+		assertEquals(Arrays.asList("Meyer", "Maier"),
+				index.search("meyer", 2));
+	}
+
+	public void testDropsSpellingsWithTheLastUser() {
+		FuzzyIndex index = new FuzzyIndex();
+		index.registered(new User("1", "Meier", "Meierhofer", null));
+		index.registered(new User("2", "Meier", "Berg", null));
+		assertEquals(3, index.size());
+
+		index.removed(new User("1", "Meier", "Meierhofer", null));
+		assertEquals(Arrays.asList("Meier"), index.search("meier", 0));
+		assertTrue(index.search("meierhofer", 2).isEmpty());
+		assertEquals(2, index.size());
+
+		index.removed(new User("2", "Meier", "Berg", null));
+		assertTrue(index.search("meier", 2).isEmpty());
+		assertEquals(0, index.size());
+
+		// the pruned branches are grown again
+		index.registered(new User("3", "Meierhofer", "Mei", null));
+		assertEquals(Arrays.asList("Meierhofer"),
+				index.search("meierhofer", 0));
+		assertEquals(Arrays.asList("Mei"), index.search("mei", 0));
+	}
+
+	public void testRejectsDistanceOutOfRange() {
+		FuzzyIndex index = new FuzzyIndex();
+		try {
+			index.search("anna", FuzzyIndex.MAX_DISTANCE + 1);
+			fail("distance accepted");
+		} catch(IllegalArgumentException expected) {
+		}
+		try {
+			index.search("anna", -1);
+			fail("distance accepted");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	public void testClear() {
+		FuzzyIndex index = new FuzzyIndex();
+		index.registered(new User("1", "Anna", null, null));
+		index.clear();
+
+		assertEquals(0, index.size());
+		assertTrue(index.search("anna", 2).isEmpty());
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private static void assertMatchesBruteForce(Random random,
+			FuzzyIndex index, Iterable<User> users) {
+		Set<String> spellings = new HashSet<String>();
+		for(User user : users) {
+			spellings.add(user.getName());
+			spellings.add(user.getSurname());
+			if(user.getNickname() != null)
+				spellings.add(user.getNickname());
+		}
+
+		for(int i = 0; i < 200; i++) {
+			String query = word(random);
+			for(int distance = 0; distance <= FuzzyIndex.MAX_DISTANCE;
+					distance++) {
+				List<String> found = index.search(query, distance);
+
+				Set<String> expected = new HashSet<String>();
+				for(String spelling : spellings) {
+					if(levenshtein(normalize(query), normalize(spelling))
+							<= distance)
+						expected.add(spelling);
+				}
+				String message = "'" + query + "' within " + distance;
+				assertEquals(message, expected.size(), found.size());
+				assertEquals(message, expected, new HashSet<String>(found));
+
+				// closest first
+				int previous = 0;
+				for(String spelling : found) {
+					int d = levenshtein(normalize(query), normalize(spelling));
+					assertTrue(message, d >= previous);
+					previous = d;
+				}
+			}
+		}
+
+		Set<String> terms = new HashSet<String>();
+		for(String spelling : spellings)
+			terms.add(normalize(spelling));
+		assertEquals(terms.size(), index.size());
+	}
+
+	private static User user(Random random, String said) {
+		return new User(said, word(random), word(random),
+				random.nextBoolean() ? word(random) : null);
+	}
+
+	private static String normalize(String value) {
+		return MemoryUserProvider.normalize(value);
+	}
+
+	private static int levenshtein(String a, String b) {
+		int[][] d = new int[a.length() + 1][b.length() + 1];
+		for(int i = 0; i <= a.length(); i++)
+			d[i][0] = i;
+		for(int j = 0; j <= b.length(); j++)
+			d[0][j] = j;
+		for(int i = 1; i <= a.length(); i++) {
+			for(int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				d[i][j] = Math.min(d[i - 1][j - 1] + cost,
+						Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+			}
+		}
+		return d[a.length()][b.length()];
+	}
+
+	private static String word(Random random) {
+		int length = random.nextInt(7);
+		StringBuilder word = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+			word.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		return word.toString();
+	}
+
+}
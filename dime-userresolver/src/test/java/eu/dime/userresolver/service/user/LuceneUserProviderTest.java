@@ -0,0 +1,197 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Cursor paging of the {@link LuceneUserProvider}, in an index below a
+ * temporary app folder.
+ */
+public class LuceneUserProviderTest extends TestCase {
+
+	private File folder;
+	private LuceneUserProvider provider;
+
+	@Override
+	protected void setUp() throws Exception {
+		folder = File.createTempFile("lucene", "");
+		folder.delete();
+		folder.mkdirs();
+		System.setProperty("app.folder", folder.getAbsolutePath());
+		provider = new LuceneUserProvider();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		provider.close();
+		System.clearProperty("app.folder");
+		FileUtils.deleteDirectory(folder);
+	}
+
+	public void testRanksExactBeforePrefixBeforePart() {
+		register("1", "Joanne", "Smith", null);
+		register("2", "Anna", "Berg", null);
+		register("3", "Ann", "Miller", null);
+		register("4", "Bob", "Hanna", "ann");
+
+		// 4 matches a whole nickname and part of its surname, 3 a whole
+		// name, 2 the start of a name, 1 a part of one
+		assertEquals(Arrays.asList("4", "3", "2", "1"),
+				saids(provider.searchAllLike("ann")));
+	}
+
+	public void testPagesCoverTheUnpagedResult() {
+		for(int i = 0; i < 40; i++) {
+			String name = i % 3 == 0 ? "ann" : (i % 3 == 1 ? "anna" : "joanne");
+			register("said-" + i, name, "surname" + i, null);
+		}
+		register("other", "bob", "miller", null);
+
+		List<String> all = saids(provider.searchAllLike("ann"));
+		assertEquals(40, all.size());
+		assertEquals(all, pages("ann", 7));
+		assertEquals(all, pages("ann", 1));
+		assertEquals(all, pages("ann", 40));
+	}
+
+	public void testCursorSurvivesWrites() {
+		for(int i = 0; i < 30; i++) {
+			String name = i % 3 == 0 ? "ann" : (i % 3 == 1 ? "anna" : "joanne");
+			register("said-" + i, name, "surname" + i, null);
+		}
+		List<String> before = saids(provider.searchAllLike("ann"));
+
+		// ends within the users matching a whole name
+		UserPage first = provider.searchAllLike("ann", null, 5);
+		List<String> seen = saids(first.getUsers());
+
+		// changes the term statistics of every tier
+		for(int i = 0; i < 50; i++)
+			register("new-" + i, "ann", "x" + i, "annabel" + i);
+		Set<String> removed = new HashSet<String>();
+		for(int i = 0; i < 30; i += 5) {
+			if(!seen.contains("said-" + i)) {
+				provider.remove("said-" + i);
+				removed.add("said-" + i);
+			}
+		}
+
+		String cursor = first.getNext();
+		while(cursor != null) {
+			UserPage page = provider.searchAllLike("ann", cursor, 5);
+			seen.addAll(saids(page.getUsers()));
+			cursor = page.getNext();
+		}
+
+		assertEquals("no user twice", new HashSet<String>(seen).size(),
+				seen.size());
+		for(String said : before)
+			assertEquals(said, !removed.contains(said), seen.contains(said));
+	}
+
+	public void testFuzzyRanksCloserSpellingsFirst() {
+		register("1", "Meier", "A", null);
+		register("2", "Meyer", "B", null);
+		register("3", "Mayr", "C", null);
+
+		List<String> saids = saids(provider.searchFuzzy(
+				"meyer", 2, null, 10).getUsers());
+		assertEquals("2", saids.get(0));
+		assertEquals("1", saids.get(1));
+		assertTrue(saids.contains("3"));
+
+		List<String> paged = new ArrayList<String>();
+		String cursor = null;
+		do {
+			UserPage page = provider.searchFuzzy("meyer", 2, cursor, 1);
+			paged.addAll(saids(page.getUsers()));
+			cursor = page.getNext();
+		} while(cursor != null);
+		assertEquals(saids, paged);
+	}
+
+	public void testExactSearchPagesById() {
+		for(int i = 0; i < 25; i++)
+			register("said-" + i, "anna", "berg", null);
+
+		List<String> paged = new ArrayList<String>();
+		String cursor = null;
+		do {
+			UserPage page = provider.search("anna", null, null, cursor, 10);
+			paged.addAll(saids(page.getUsers()));
+			cursor = page.getNext();
+		} while(cursor != null);
+		assertEquals(saids(provider.search("anna", null, null)), paged);
+		assertEquals(25, paged.size());
+	}
+
+	public void testRejectsInvalidCursor() {
+		register("1", "anna", "berg", null);
+		try {
+			provider.searchAllLike("ann", "bm90LWEtY3Vyc29y", 10);
+			fail("invalid cursor accepted");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	public void testRestoresOnReopen() {
+		register("1", "anna", "berg", null);
+		provider.close();
+		provider = new LuceneUserProvider();
+
+		assertEquals("anna", provider.getBySaid("1").getName());
+		register("2", "anna", "meyer", null);
+		assertEquals(2, provider.getBySaid("2").getId());
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void register(String said, String name, String surname,
+			String nickname) {
+		provider.register(new User(said, name, surname, nickname));
+	}
+
+	private List<String> pages(String query, int limit) {
+		List<String> saids = new ArrayList<String>();
+		Set<String> cursors = new HashSet<String>();
+		String cursor = null;
+		do {
+			UserPage page = provider.searchAllLike(query, cursor, limit);
+			assertTrue(page.getUsers().size() <= limit);
+			saids.addAll(saids(page.getUsers()));
+			cursor = page.getNext();
+			assertTrue(cursor == null || cursors.add(cursor));
+		} while(cursor != null);
+		return saids;
+	}
+
+	private static List<String> saids(List<User> users) {
+		List<String> saids = new ArrayList<String>(users.size());
+		for(User user : users)
+			saids.add(user.getSaid());
+		return saids;
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+
+/**
+ * Upgrades databases in the schema of the unversioned releases to the
+ * latest version.
+ */
+public class SchemaMigrationsTest extends TestCase {
+
+	private File file;
+	private JdbcConnectionSource connectionSource;
+	private Dao<User, Integer> userDao;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("users", ".db");
+		connectionSource = new JdbcConnectionSource(
+				"jdbc:sqlite:" + file.getAbsolutePath());
+		userDao = DaoManager.createDao(connectionSource, User.class);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		connectionSource.close();
+		file.delete();
+	}
+
+	public void testUpgradesBaselineDatabase() throws Exception {
+		// as created by TableUtils for the User of the first release
+		userDao.executeRaw("CREATE TABLE `users` (`id` INTEGER PRIMARY KEY "
+				+ "AUTOINCREMENT, `key` VARCHAR, `surname` VARCHAR, "
+				+ "`name` VARCHAR, `nickname` VARCHAR, `said` VARCHAR)");
+		insert("said-1", "Anna", "Schmidt", "anni", "hash-1");
+		insert("said-2", "Stephen", "Meyer", null, "hash-2");
+
+		SchemaMigrations.migrate(connectionSource, userDao);
+
+		assertEquals(SchemaMigrations.latestVersion(), version());
+		List<User> users = userDao.queryForAll();
+		assertEquals(2, users.size());
+		for(User user : users) {
+			assertEquals(PhoneticKeys.primary(user.getName()),
+					user.getNamePhonetic());
+			assertEquals(PhoneticKeys.primary(user.getSurname()),
+					user.getSurnamePhonetic());
+			assertEquals(PhoneticKeys.primary(user.getNickname()),
+					user.getNicknamePhonetic());
+		}
+		assertEquals("hash-1", userDao.queryForEq("said", "said-1")
+				.get(0).getKey());
+		assertNull(userDao.queryForEq("said", "said-2")
+				.get(0).getNicknamePhonetic());
+
+		Set<String> indexes = indexes();
+		assertTrue(indexes.contains("users_said_idx"));
+		assertTrue(indexes.contains("users_name_idx"));
+		assertTrue(indexes.contains("users_name_phonetic_idx"));
+		try {
+			insert("said-1", "Other", "User", null, null);
+			fail("said index is not unique");
+		} catch(SQLException expected) {
+		}
+	}
+
+	public void testAddsKeyColumnToOldestSchema() throws Exception {
+		userDao.executeRaw("CREATE TABLE `users` (`id` INTEGER PRIMARY KEY "
+				+ "AUTOINCREMENT, `surname` VARCHAR, `name` VARCHAR, "
+				+ "`nickname` VARCHAR, `said` VARCHAR)");
+		userDao.executeRaw("INSERT INTO users (said, name, surname, nickname) "
+				+ "VALUES ('said-1', 'Anna', 'Schmidt', 'anni')");
+
+		SchemaMigrations.migrate(connectionSource, userDao);
+
+		User user = userDao.queryForEq("said", "said-1").get(0);
+		assertNull(user.getKey());
+		user.setKey("hash-1");
+		userDao.update(user);
+		assertEquals("hash-1", userDao.queryForId(user.getId()).getKey());
+	}
+
+	public void testKeepsDuplicateSaids() throws Exception {
+		userDao.executeRaw("CREATE TABLE `users` (`id` INTEGER PRIMARY KEY "
+				+ "AUTOINCREMENT, `key` VARCHAR, `surname` VARCHAR, "
+				+ "`name` VARCHAR, `nickname` VARCHAR, `said` VARCHAR)");
+		insert("said-1", "Anna", "Schmidt", null, null);
+		insert("said-1", "Anna", "Schmidt", null, null);
+
+		SchemaMigrations.migrate(connectionSource, userDao);
+
+		assertEquals(SchemaMigrations.latestVersion(), version());
+		assertTrue(indexes().contains("users_said_idx"));
+		assertEquals(2, userDao.queryForEq("said", "said-1").size());
+	}
+
+	public void testCreatesNewDatabaseAndIsIdempotent() throws Exception {
+		SchemaMigrations.migrate(connectionSource, userDao);
+		insert("said-1", "Anna", "Schmidt", null, null);
+		SchemaMigrations.migrate(connectionSource, userDao);
+
+		assertEquals(SchemaMigrations.latestVersion(), version());
+		assertEquals(1, userDao.countOf());
+		assertEquals(1, count("SELECT COUNT(*) FROM schema_version"));
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void insert(String said, String name, String surname,
+			String nickname, String key) throws SQLException {
+		userDao.updateRaw("INSERT INTO users (said, name, surname, nickname, "
+				+ "key) VALUES (?, ?, ?, ?, ?)",
+				said, name, surname, nickname, key);
+	}
+
+	private int version() throws SQLException {
+		return count("SELECT MAX(version) FROM schema_version");
+	}
+
+	private int count(String query) throws SQLException {
+		GenericRawResults<String[]> results = userDao.queryRaw(query);
+		try {
+			return Integer.parseInt(results.getFirstResult()[0]);
+		} finally {
+			results.close();
+		}
+	}
+
+	private Set<String> indexes() throws SQLException {
+		Set<String> indexes = new HashSet<String>();
+		GenericRawResults<String[]> results = userDao.queryRaw(
+				"SELECT name FROM sqlite_master WHERE type = 'index'");
+		try {
+			for(String[] row : results)
+				indexes.add(row[0]);
+		} finally {
+			results.close();
+		}
+		return indexes;
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright 2013 by the digital.me project (http:\\www.dime-project.eu).
+*
+* Licensed under the EUPL, Version 1.1 only (the "Licence");
+* You may not use this work except in compliance with the Licence.
+* You may obtain a copy of the Licence at:
+*
+* http://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+*
+* Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the Licence for the specific language governing permissions and limitations under the Licence.
+*/
+
+package eu.dime.userresolver.service.user;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link TrigramIndex#searchLike(String)} with SQLite's
+ * <code>LIKE '%query%'</code> over the same users.
+ */
+public class TrigramIndexTest extends TestCase {
+
+	/** few letters, so that random queries have matches */
+	private static final String ALPHABET = "abAB\u00e9\u00c9 -";
+
+	private Connection connection;
+	private TrigramIndex index;
+
+	@Override
+	protected void setUp() throws Exception {
+		Class.forName("org.sqlite.JDBC");
+		connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE users (id INTEGER PRIMARY KEY, "
+				+ "name VARCHAR, surname VARCHAR, nickname VARCHAR)");
+		statement.close();
+		index = new TrigramIndex();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		connection.close();
+	}
+
+	public void testMatchesLikeOnRandomUsers() throws Exception {
+		Random random = new Random(42);
+		for(int id = 1; id <= 500; id++)
+			add(id, word(random, 0.1), word(random, 0.1), word(random, 0.3));
+
+		for(int i = 0; i < 300; i++) {
+			String query = word(random, 0);
+			assertEquals("query '" + query + "'", like(query),
+					index.searchLike(query));
+		}
+	}
+
+	public void testFoldsAsciiOnly() throws Exception {
+		add(1, "\u00c9mile", "ZOLA", null);
+		add(2, "\u00e9mile", "zola", "Em");
+
+		assertEquals(like("zol"), index.searchLike("zol"));
+		assertEquals(Arrays.asList(1, 2), index.searchLike("ZoL"));
+		assertEquals(like("\u00e9mi"), index.searchLike("\u00e9mi"));
+		assertEquals(Arrays.asList(2), index.searchLike("\u00e9mi"));
+		assertEquals(like("em"), index.searchLike("em"));
+	}
+
+	public void testFollowsUpdatesAndRemovals() throws Exception {
+		add(1, "anna", "berg", null);
+		add(2, "hanna", "berger", null);
+		assertEquals(Arrays.asList(1, 2), index.searchLike("anna"));
+
+		User updated = user(1, "jana", "berg", null);
+		index.updated(updated);
+		assertEquals(Arrays.asList(2), index.searchLike("anna"));
+		assertEquals(Arrays.asList(1), index.searchLike("jan"));
+
+		index.removed(user(2, "hanna", "berger", null));
+		assertEquals(Arrays.asList(1), index.searchLike("berg"));
+		assertEquals(1, index.size());
+	}
+
+	public void testSupportsNoWildcards() {
+		assertTrue(TrigramIndex.supports("anna"));
+		assertFalse(TrigramIndex.supports("an%na"));
+		assertFalse(TrigramIndex.supports("an_na"));
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+
+	private void add(int id, String name, String surname, String nickname)
+			throws Exception {
+		PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO users VALUES (?, ?, ?, ?)");
+		insert.setInt(1, id);
+		insert.setString(2, name);
+		insert.setString(3, surname);
+		insert.setString(4, nickname);
+		insert.executeUpdate();
+		insert.close();
+
+		index.registered(user(id, name, surname, nickname));
+	}
+
+	private List<Integer> like(String query) throws Exception {
+		PreparedStatement select = connection.prepareStatement(
+				"SELECT id FROM users WHERE name LIKE ? OR surname LIKE ? "
+				+ "OR nickname LIKE ? ORDER BY id");
+		for(int i = 1; i <= 3; i++)
+			select.setString(i, "%" + query + "%");
+
+		List<Integer> ids = new ArrayList<Integer>();
+		ResultSet results = select.executeQuery();
+		while(results.next())
+			ids.add(results.getInt(1));
+		select.close();
+		return ids;
+	}
+
+	private static User user(int id, String name, String surname,
+			String nickname) {
+		User user = new User("said-" + id, name, surname, nickname);
+		user.setId(id);
+		return user;
+	}
+
+	/**
+	 * @param nulls probability of a null word
+	 */
+	private static String word(Random random, double nulls) {
+		if(random.nextDouble() < nulls)
+			return null;
+		int length = 1 + random.nextInt(6);
+		StringBuilder word = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+			word.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		return word.toString();
+	}
+
+}